@@ -0,0 +1,151 @@
+package org.embulk.output.mailchimp;
+
+import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses the number of records of the next batch request between `min_records_per_request` and
+ * `max_records_per_request`, from the outcome of the requests sent so far. Every request counts on its own,
+ * i.e. each round of duplicated emails and each half of a split batch.
+ * <p>
+ * The size aims at requests taking `target_request_millis`: the throughput in bytes per millisecond and the
+ * bytes per member of the recent requests predict how many members fit in that time. A size changes by half
+ * at most per request, so one odd request doesn't swing it. A request failing for a retryable reason, i.e.
+ * a timeout or a server error, or rejected as too large halves the size at once.
+ * <p>
+ * Without `adaptive_batch_size`, the size stays at `max_records_per_request`.
+ */
+public class AdaptiveBatchSizer
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+    // Weight of the latest batch in the moving averages
+    private static final double SMOOTHING = 0.3;
+
+    private final boolean adaptive;
+    private final int minSize;
+    private final int maxSize;
+    private final long targetMillis;
+    private final Map<Integer, Long> histogram = new TreeMap<>();
+    private int size;
+    private double bytesPerMillis;
+    private double bytesPerMember;
+
+    /**
+     * Instantiates a new Adaptive batch sizer.
+     *
+     * @param adaptive     whether the size adapts, or stays at the max size
+     * @param minSize      the min number of records per request
+     * @param maxSize      the max number of records per request, also the initial size
+     * @param targetMillis the desired time of a request
+     */
+    public AdaptiveBatchSizer(final boolean adaptive, final int minSize, final int maxSize, final long targetMillis)
+    {
+        this.adaptive = adaptive;
+        this.minSize = Math.min(minSize, maxSize);
+        this.maxSize = maxSize;
+        this.targetMillis = targetMillis;
+        this.size = maxSize;
+    }
+
+    public static AdaptiveBatchSizer of(final PluginTask task)
+    {
+        return new AdaptiveBatchSizer(task.getAdaptiveBatchSize(), task.getMinRecordsPerRequest(),
+                                      task.getMaxRecordsPerRequest(), task.getTargetRequestMillis());
+    }
+
+    /**
+     * Gets the number of records of the next batch.
+     *
+     * @return the batch size
+     */
+    public synchronized int getBatchSize()
+    {
+        return size;
+    }
+
+    /**
+     * Take a request into account once it is pushed, whether MailChimp applied or refused its records.
+     *
+     * @param records       the number of records of the request
+     * @param bytes         the estimated size of the request
+     * @param elapsedMillis the time the request took
+     */
+    public synchronized void onSuccess(final int records, final long bytes, final long elapsedMillis)
+    {
+        record(records);
+        if (!adaptive || records == 0) {
+            return;
+        }
+        bytesPerMember = average(bytesPerMember, (double) bytes / records);
+        bytesPerMillis = average(bytesPerMillis, (double) bytes / Math.max(1, elapsedMillis));
+
+        int predicted = (int) Math.min(Integer.MAX_VALUE, targetMillis * bytesPerMillis / bytesPerMember);
+        int next = clamp(predicted, size / 2, size + size / 2);
+        if (next != size) {
+            LOG.info("Request of {} records took {} ms ({} bytes per record), {} records per request from now on",
+                     records, elapsedMillis, (long) bytesPerMember, next);
+            size = next;
+        }
+    }
+
+    /**
+     * Take into account a request which failed for a retryable reason, such as a timeout or a server error,
+     * or which was too large.
+     *
+     * @param records the number of records of the request
+     */
+    public synchronized void onFailure(final int records)
+    {
+        record(records);
+        if (!adaptive) {
+            return;
+        }
+        int next = clamp(size / 2, size / 2, size);
+        if (next != size) {
+            LOG.info("Request of {} records failed, {} records per request from now on", records, next);
+            size = next;
+        }
+    }
+
+    /**
+     * Take into account a request which MailChimp refused for its content, i.e. as invalid. It counts as
+     * a request, but tells nothing of how the size fares.
+     *
+     * @param records the number of records of the request
+     */
+    public synchronized void onRejected(final int records)
+    {
+        record(records);
+    }
+
+    /**
+     * Gets the number of requests by batch size, rounded up to the next power of 2.
+     *
+     * @return the histogram
+     */
+    public synchronized Map<Integer, Long> getHistogram()
+    {
+        return new TreeMap<>(histogram);
+    }
+
+    private void record(final int records)
+    {
+        int bucket = records <= 1 ? 1 : Integer.highestOneBit(records - 1) << 1;
+        Long count = histogram.get(bucket);
+        histogram.put(bucket, count == null ? 1 : count + 1);
+    }
+
+    private int clamp(final int value, final int lower, final int upper)
+    {
+        return Math.max(minSize, Math.min(maxSize, Math.max(lower, Math.min(upper, value))));
+    }
+
+    private static double average(final double average, final double value)
+    {
+        return average == 0 ? value : average + SMOOTHING * (value - average);
+    }
+}
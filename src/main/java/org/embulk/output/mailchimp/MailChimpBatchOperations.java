@@ -0,0 +1,267 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
+import org.embulk.output.mailchimp.helper.PayloadBuffer;
+import org.embulk.output.mailchimp.helper.TarArchiveReader;
+import org.embulk.output.mailchimp.model.BatchResponse;
+import org.embulk.output.mailchimp.model.ReportResponse;
+import org.embulk.spi.DataException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static java.text.MessageFormat.format;
+
+/**
+ * Send bulk upserts through MailChimp batch operations instead of waiting for every request.
+ * Bulk upsert payloads are packed as operations into a few large uploads to `/batches`, and the results
+ * are collected from the result archives once all uploads are finished.
+ * Reference: https://mailchimp.com/developer/marketing/api/batch-operations/
+ */
+public class MailChimpBatchOperations
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MailChimpBatchOperations.class);
+    private static final long MAX_POLL_INTERVAL_MILLIS = 60000;
+    private static final long MAX_WAIT_MILLIS = TimeUnit.HOURS.toMillis(12);
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS, false)
+            .configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+    private final PluginTask task;
+    private final MailChimpClient mailChimpClient;
+    private final List<String> batchIds = new ArrayList<>();
+    private final Map<String, Integer> membersByOperation = new HashMap<>();
+    // The upload being written, operation by operation, until it is started
+    private PayloadBuffer upload;
+    private JsonGenerator uploadGenerator;
+    private int pendingOperations;
+    private int pendingMembers;
+    private int operationCount;
+    private long totalCreated;
+    private long totalUpdated;
+    private int errorCount;
+
+    /**
+     * Instantiates a new Mail chimp batch operations.
+     *
+     * @param task            the task
+     * @param mailChimpClient the mail chimp client
+     */
+    public MailChimpBatchOperations(final PluginTask task, final MailChimpClient mailChimpClient)
+    {
+        this.task = task;
+        this.mailChimpClient = mailChimpClient;
+    }
+
+    /**
+     * Add a bulk upsert of members as an operation, and upload the operations once `batch_operations_size`
+     * members are pending. The payload is escaped into the upload as the operation's body, its only copy,
+     * so the caller may reuse it right after.
+     *
+     * @param subscribers the bulk upsert payload, not compressed
+     * @param memberCount the number of members in the payload
+     */
+    public void add(final PayloadBuffer subscribers, final int memberCount) throws JsonProcessingException
+    {
+        String operationId = String.valueOf(operationCount++);
+        try {
+            if (uploadGenerator == null) {
+                upload = new PayloadBuffer(subscribers.size() * 2);
+                uploadGenerator = JSON_FACTORY.createGenerator(upload);
+                uploadGenerator.writeStartObject();
+                uploadGenerator.writeArrayFieldStart("operations");
+            }
+            uploadGenerator.writeStartObject();
+            uploadGenerator.writeStringField("method", "POST");
+            uploadGenerator.writeStringField("path", format("/lists/{0}", task.getListId()));
+            uploadGenerator.writeStringField("operation_id", operationId);
+            uploadGenerator.writeFieldName("body");
+            subscribers.writeAsJsonString(uploadGenerator);
+            uploadGenerator.writeObjectFieldStart("params");
+            uploadGenerator.writeStringField("fields", MailChimpClient.REPORT_RESPONSE_FIELDS);
+            uploadGenerator.writeEndObject();
+            uploadGenerator.writeEndObject();
+        }
+        catch (JsonProcessingException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            throw new DataException(e);
+        }
+        pendingOperations++;
+        membersByOperation.put(operationId, memberCount);
+        pendingMembers += memberCount;
+
+        if (pendingMembers >= task.getBatchOperationsSize()) {
+            flush();
+        }
+    }
+
+    /**
+     * Upload the pending operations as a new batch.
+     */
+    public void flush() throws JsonProcessingException
+    {
+        if (uploadGenerator == null) {
+            return;
+        }
+        try {
+            uploadGenerator.writeEndArray();
+            uploadGenerator.writeEndObject();
+            uploadGenerator.close();
+        }
+        catch (IOException e) {
+            throw new DataException(e);
+        }
+        BatchResponse batch = mailChimpClient.startBatch(upload);
+        LOG.info("Started batch {} with {} operation(s) of {} record(s)", batch.getId(), pendingOperations, pendingMembers);
+        batchIds.add(batch.getId());
+        upload = null;
+        uploadGenerator = null;
+        pendingOperations = 0;
+        pendingMembers = 0;
+    }
+
+    /**
+     * Upload the pending operations, then wait for every batch to finish and count their results.
+     */
+    public void awaitResults() throws JsonProcessingException
+    {
+        flush();
+        for (String batchId : batchIds) {
+            BatchResponse batch = awaitFinished(batchId);
+            LOG.info("Batch {} finished: {} operation(s), {} errored", batch.getId(), batch.getTotalOperations(), batch.getErroredOperations());
+            if (batch.getResponseBodyUrl() == null || batch.getResponseBodyUrl().isEmpty()) {
+                throw new DataException(format("Batch `{0}` finished without results", batch.getId()));
+            }
+            try (InputStream archive = new GZIPInputStream(mailChimpClient.downloadBatchResults(batch))) {
+                TarArchiveReader.forEachFile(archive, (name, content) -> {
+                    if (name.endsWith(".json")) {
+                        readResults(content);
+                    }
+                });
+            }
+            catch (IOException e) {
+                throw new DataException(format("Failed to read results of batch `{0}`", batch.getId()), e);
+            }
+        }
+        batchIds.clear();
+        LOG.info("Response from MailChimp batches: {} records created, {} records updated, {} records failed",
+                 totalCreated, totalUpdated, errorCount);
+    }
+
+    public long getTotalCreated()
+    {
+        return totalCreated;
+    }
+
+    public long getTotalUpdated()
+    {
+        return totalUpdated;
+    }
+
+    /**
+     * Gets the number of records which failed in the finished batches.
+     *
+     * @return the error count
+     */
+    public int getErrorCount()
+    {
+        return errorCount;
+    }
+
+    private BatchResponse awaitFinished(final String batchId) throws JsonProcessingException
+    {
+        long interval = task.getBatchOperationsPollIntervalMillis();
+        long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+        while (true) {
+            BatchResponse batch = mailChimpClient.getBatch(batchId);
+            if (batch.isFinished()) {
+                return batch;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new DataException(format("Batch `{0}` did not finish in time, last status `{1}`", batchId, batch.getStatus()));
+            }
+            LOG.info("Batch {} is {}: {}/{} operation(s) finished", batchId, batch.getStatus(),
+                     batch.getFinishedOperations(), batch.getTotalOperations());
+            try {
+                Thread.sleep(interval);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            interval = Math.min(MAX_POLL_INTERVAL_MILLIS, interval * 2);
+        }
+    }
+
+    /**
+     * Read a result file, an array of `{"status_code", "operation_id", "response"}`, one element at a time.
+     */
+    private void readResults(final InputStream content) throws IOException
+    {
+        try (JsonParser parser = mapper.getFactory().createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new DataException("Unexpected format of batch results");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                int statusCode = 0;
+                String operationId = null;
+                String response = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("status_code".equals(field)) {
+                        statusCode = parser.getIntValue();
+                    }
+                    else if ("operation_id".equals(field)) {
+                        operationId = parser.getText();
+                    }
+                    else if ("response".equals(field)) {
+                        response = parser.getText();
+                    }
+                    else {
+                        parser.skipChildren();
+                    }
+                }
+                countResult(statusCode, operationId, response);
+            }
+        }
+    }
+
+    private void countResult(final int statusCode, final String operationId, final String response) throws IOException
+    {
+        if (statusCode / 100 == 2 && response != null) {
+            ReportResponse reportResponse = mapper.readValue(response, ReportResponse.class);
+            totalCreated += reportResponse.getTotalCreated();
+            totalUpdated += reportResponse.getTotalUpdated();
+            if (reportResponse.getErrors() != null) {
+                errorCount += reportResponse.getErrors().size();
+                mailChimpClient.handleErrors(reportResponse.getErrors());
+            }
+            return;
+        }
+
+        // The whole bulk upsert failed
+        Integer memberCount = membersByOperation.get(operationId);
+        errorCount += memberCount != null ? memberCount : 0;
+        LOG.error("Operation {} of {} record(s) failed with status {}: {}", operationId, memberCount, statusCode, response);
+    }
+}
@@ -3,34 +3,46 @@ package org.embulk.output.mailchimp;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Function;
+import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.eclipse.jetty.client.HttpResponseException;
 import org.embulk.base.restclient.jackson.StringJsonParser;
 import org.embulk.config.ConfigException;
 import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
 import org.embulk.output.mailchimp.helper.MailChimpHelper;
+import org.embulk.output.mailchimp.helper.MailChimpRetryPolicy;
 import org.embulk.output.mailchimp.helper.MailChimpRetryable;
+import org.embulk.output.mailchimp.helper.PayloadBuffer;
+import org.embulk.output.mailchimp.helper.ReportResponseParser;
+import org.embulk.output.mailchimp.model.BatchResponse;
 import org.embulk.output.mailchimp.model.Category;
 import org.embulk.output.mailchimp.model.ErrorResponse;
 import org.embulk.output.mailchimp.model.Interest;
 import org.embulk.output.mailchimp.model.MergeField;
 import org.embulk.output.mailchimp.model.ReportResponse;
-import org.embulk.spi.DataException;
 import org.embulk.spi.Schema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.text.MessageFormat.format;
 import static java.util.Arrays.asList;
@@ -39,43 +51,113 @@ import static java.util.Arrays.asList;
  * Created by thangnc on 4/25/17.
  */
 public class MailChimpClient
+        implements AutoCloseable
 {
     private static final Logger LOG = LoggerFactory.getLogger(MailChimpClient.class);
+    private static final ReportResponseParser REPORT_RESPONSE_PARSER = new ReportResponseParser();
+    /**
+     * The fields of a bulk upsert response which are read, so that MailChimp doesn't echo the members back.
+     * Reference: https://mailchimp.com/developer/marketing/docs/methods-parameters/#partial-responses
+     */
+    public static final String REPORT_RESPONSE_FIELDS = "total_created,total_updated,error_count,errors";
     private final ObjectMapper mapper = new ObjectMapper()
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
             .configure(JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS, false);
     private StringJsonParser jsonParser = new StringJsonParser();
+    // The largest page of records MailChimp returns
+    private static final int PAGE_SIZE = 1000;
+    private static final int MAX_CONCURRENT_METADATA_REQUESTS = 4;
+    private final MailChimpRetryable retryable;
+    private ExecutorService metadataExecutor;
+    private int mergeFieldCount = -1;
 
     /**
-     * Instantiates a new Mail chimp client.
+     * Instantiates a new Mail chimp client. All requests of the client go through the same
+     * @{@link MailChimpRetryable}, which is backed by the http client shared by the task's credential.
+     * The list is checked unless the transaction already resolved its metadata.
      *
      * @param task the task
      */
     public MailChimpClient(final PluginTask task)
     {
-        findList(task);
+        this.retryable = new MailChimpRetryable(task);
+        try {
+            if (!task.getMergeFieldsByTag().isPresent()) {
+                findList(task);
+            }
+        }
+        catch (RuntimeException e) {
+            retryable.close();
+            throw e;
+        }
     }
 
     /**
-     * Build an array of email subscribers and batch insert via bulk MailChimp API
+     * Build an array of email subscribers and batch insert via bulk MailChimp API, once. A retryable failure
+     * is thrown for the caller to schedule the retry with {@link #getRetryPolicy()}.
      * Reference: https://developer.mailchimp.com/documentation/mailchimp/reference/lists/#create-post_lists_list_id
      *
-     * @param node the data
-     * @param task the task
+     * @param payload the encoded data, gzipped if `use_gzip` is enabled
+     * @param task    the task
      * @return the report response
      */
-    public ReportResponse push(final ObjectNode node, PluginTask task) throws JsonProcessingException
+    public ReportResponse pushOnce(final PayloadBuffer payload, PluginTask task) throws JsonProcessingException
     {
-        try (MailChimpRetryable retryable = new MailChimpRetryable(task)) {
-            String response = retryable.post(format("/lists/{0}", task.getListId()),
-                                             "application/json;utf-8",
-                                             node.toString());
-            if (response != null && !response.isEmpty()) {
-                return mapper.treeToValue(jsonParser.parseJsonObject(response), ReportResponse.class);
-            }
+        return retryable.postOnce(format("/lists/{0}?fields={1}", task.getListId(), REPORT_RESPONSE_FIELDS),
+                                  payload.toContentProvider("application/json;utf-8"),
+                                  task.getUseGzip() ? "gzip" : null,
+                                  REPORT_RESPONSE_PARSER);
+    }
 
-            throw new DataException("The json data in response were broken.");
-        }
+    public MailChimpRetryPolicy getRetryPolicy()
+    {
+        return retryable.getRetryPolicy();
+    }
+
+    /**
+     * Gets the API endpoint of the account's data center.
+     *
+     * @return the endpoint
+     */
+    public String getEndpoint()
+    {
+        return retryable.getEndpoint();
+    }
+
+    /**
+     * Start an asynchronous batch of operations
+     * Reference: https://mailchimp.com/developer/marketing/api/batch-operations/start-batch-operation/
+     *
+     * @param operations the encoded payload with `operations` array
+     * @return the batch status
+     */
+    public BatchResponse startBatch(final PayloadBuffer operations) throws JsonProcessingException
+    {
+        return mapper.treeToValue(
+                jsonParser.parseJsonObject(retryable.post("/batches", operations.toContentProvider("application/json;utf-8"))),
+                BatchResponse.class);
+    }
+
+    /**
+     * Get the status of a batch of operations
+     *
+     * @param batchId the batch id
+     * @return the batch status
+     */
+    public BatchResponse getBatch(final String batchId) throws JsonProcessingException
+    {
+        return mapper.treeToValue(jsonParser.parseJsonObject(retryable.get("/batches/" + batchId)), BatchResponse.class);
+    }
+
+    /**
+     * Open the gzipped tar archive of the results of a finished batch of operations
+     *
+     * @param batch the finished batch
+     * @return the archive stream, to be closed by the caller
+     */
+    public InputStream downloadBatchResults(final BatchResponse batch)
+    {
+        return retryable.download(batch.getResponseBodyUrl());
     }
 
     /**
@@ -104,42 +186,45 @@ public class MailChimpClient
      * Reference: https://developer.mailchimp.com/documentation/mailchimp/reference/lists/interest-categories/#read-get_lists_list_id_interest_categories
      * https://developer.mailchimp.com/documentation/mailchimp/reference/lists/interest-categories/#read-get_lists_list_id_interest_categories_interest_category_id
      */
-    Map<String, Map<String, Interest>> interestsByCategory(final PluginTask task, Schema schema) throws JsonProcessingException
+    public Map<String, Map<String, Interest>> interestsByCategory(final PluginTask task, Schema schema) throws JsonProcessingException
     {
         if (!task.getGroupingColumns().isPresent() || task.getGroupingColumns().get().isEmpty()) {
             return Collections.emptyMap();
         }
-        try (MailChimpRetryable retryable = new MailChimpRetryable(task)) {
-            List<Category> categories = fetchCategories(retryable, task.getListId(), task.getGroupingColumns().get());
-            Map<String, Map<String, Interest>> interestsByCategory = new HashMap<>();
-            for (Category category : categories) {
-                // Skip fetching interests if this category isn't specified in the task's grouping column.
-                // Assume task's grouping columns are always in lower case
-                if (!task.getGroupingColumns().get().contains(category.getTitle().toLowerCase())) {
-                    continue;
-                }
-                avoidFloodAPI("Fetching next category's interests", task.getSleepBetweenRequestsMillis());
-                interestsByCategory.put(
-                        category.getTitle().toLowerCase(),
-                        convertInterestCategoryToMap(fetchInterests(retryable, task.getListId(), category.getId())));
+        List<Category> categories = fetchCategories(task.getListId(), task.getGroupingColumns().get());
+        List<String> categoryTitles = new ArrayList<>();
+        List<String> categoryIds = new ArrayList<>();
+        for (Category category : categories) {
+            // Skip fetching interests if this category isn't specified in the task's grouping column.
+            // Assume task's grouping columns are always in lower case
+            if (!task.getGroupingColumns().get().contains(category.getTitle().toLowerCase())) {
+                continue;
             }
-            return interestsByCategory;
+            categoryTitles.add(category.getTitle().toLowerCase());
+            categoryIds.add(category.getId());
+        }
+
+        // Interests of categories are fetched at the same time
+        List<List<Interest>> interests = fetchInterests(task.getListId(), categoryIds);
+        Map<String, Map<String, Interest>> interestsByCategory = new HashMap<>();
+        for (int i = 0; i < categoryTitles.size(); i++) {
+            interestsByCategory.put(categoryTitles.get(i), convertInterestCategoryToMap(interests.get(i)));
         }
+        return interestsByCategory;
     }
 
     /**
      * @throws ConfigException if task having unexist category
      */
-    private List<Category> fetchCategories(MailChimpRetryable retryable,
-                                           String listId,
+    private List<Category> fetchCategories(String listId,
                                            List<String> taskCategories)
             throws JsonProcessingException
     {
         List<Category> categories = fetch(
-                retryable,
                 "/lists/" + listId + "/interest-categories",
                 "categories",
-                Category[].class);
+                Category[].class,
+                "id", "title");
         // Fail early if one of the task's categories is not exist
         taskCategories:
         for (String taskCategoryName : taskCategories) {
@@ -154,43 +239,32 @@ public class MailChimpClient
         return categories;
     }
 
-    private List<Interest> fetchInterests(MailChimpRetryable retryable,
-                                          String listId,
-                                          String categoryId)
+    private List<List<Interest>> fetchInterests(String listId,
+                                                List<String> categoryIds)
             throws JsonProcessingException
     {
-        return fetch(retryable,
-                "/lists/" + listId + "/interest-categories/" + categoryId + "/interests",
+        List<String> urls = new ArrayList<>();
+        for (String categoryId : categoryIds) {
+            urls.add("/lists/" + listId + "/interest-categories/" + categoryId + "/interests");
+        }
+        return fetch(urls,
                 "interests",
-                Interest[].class);
+                Interest[].class,
+                "id", "name");
     }
     /**
      * Extract merge fields from the list, find correct merge fields from API and put into the map to use
      * Reference: https://developer.mailchimp.com/documentation/mailchimp/reference/lists/merge-fields/#read-get_lists_list_id_merge_fields
      */
-    Map<String, MergeField> mergeFieldByTag(PluginTask task) throws JsonProcessingException
+    public Map<String, MergeField> mergeFieldByTag(PluginTask task) throws JsonProcessingException
     {
         return convertMergeFieldToMap(
-                fetch(task,
-                        "/lists/" + task.getListId() + "/merge-fields",
+                fetch("/lists/" + task.getListId() + "/merge-fields",
                         "merge_fields",
-                        MergeField[].class));
+                        MergeField[].class,
+                        "merge_id", "tag", "name", "type"));
     }
 
-    /**
-     * Like {@link MailChimpClient#fetch(MailChimpRetryable, String, String, Class)},
-     * with an automatically created MailchimpRetryable
-     */
-    private <T> List<T> fetch(PluginTask task,
-                              String url,
-                              String recordsAttribute,
-                              Class<T[]> entitiesClass)
-            throws JsonProcessingException
-    {
-        try (MailChimpRetryable retryable = new MailChimpRetryable(task)) {
-            return fetch(retryable, url, recordsAttribute, entitiesClass);
-        }
-    }
     /**
      * Fetch all (by pagination) records at the target URL,
      * Assume that endpoint handles `count` and `offset` parameter and have a response scheme of:
@@ -200,32 +274,137 @@ public class MailChimpClient
      *     }
      * @param recordsAttribute name of the attribute to extract records inside the response's body.
      * @param entitiesClass *Array* class of the entity to deserialize into
+     * @param recordFields the fields of records to request, other fields are left out of the response
      */
-    private <T> List<T> fetch(MailChimpRetryable retryable,
-                              String url,
-                              String recordsAttribute,
-                              Class<T[]> entitiesClass)
+    private <T> List<T> fetch(final String url,
+                              final String recordsAttribute,
+                              final Class<T[]> entitiesClass,
+                              String... recordFields)
             throws JsonProcessingException
     {
-        final int batchSize = 100;
-        int offset = 0;
-        List<T> entities = new ArrayList<>();
-        ObjectNode response;
-        do {
-            response = jsonParser.parseJsonObject(
-                    retryable.get(url + "?count=" + batchSize + "&offset=" + offset));
-            entities.addAll(asList(mapper.treeToValue(response.get(recordsAttribute), entitiesClass)));
-            offset += batchSize;
+        return fetch(Collections.singletonList(url), recordsAttribute, entitiesClass, recordFields).get(0);
+    }
+
+    /**
+     * Fetch all records at several URLs like {@link #fetch(String, String, Class, String...)}. The first pages
+     * of all URLs are fetched at the same time, as they tell the number of records, then all other pages are.
+     *
+     * @return the records of every URL, in the order of the URLs
+     */
+    private <T> List<List<T>> fetch(final List<String> urls,
+                                    final String recordsAttribute,
+                                    final Class<T[]> entitiesClass,
+                                    String... recordFields)
+            throws JsonProcessingException
+    {
+        StringBuilder fields = new StringBuilder("total_items");
+        for (String recordField : recordFields) {
+            fields.append(',').append(recordsAttribute).append('.').append(recordField);
+        }
+        final String query = "&fields=" + fields;
+
+        List<Callable<ObjectNode>> firstPageFetches = new ArrayList<>();
+        for (String url : urls) {
+            firstPageFetches.add(pageFetch(url + "?count=" + PAGE_SIZE + "&offset=0" + query));
+        }
+        List<ObjectNode> firstPages = invokeConcurrently(firstPageFetches);
+
+        List<List<T>> entities = new ArrayList<>();
+        List<Callable<ObjectNode>> pageFetches = new ArrayList<>();
+        List<Integer> pageUrls = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            ObjectNode firstPage = firstPages.get(i);
+            entities.add(new ArrayList<>(asList(mapper.treeToValue(firstPage.get(recordsAttribute), entitiesClass))));
+            for (int offset = PAGE_SIZE; offset < firstPage.get("total_items").asInt(); offset += PAGE_SIZE) {
+                pageFetches.add(pageFetch(urls.get(i) + "?count=" + PAGE_SIZE + "&offset=" + offset + query));
+                pageUrls.add(i);
+            }
+        }
+        List<ObjectNode> pages = invokeConcurrently(pageFetches);
+        for (int i = 0; i < pages.size(); i++) {
+            entities.get(pageUrls.get(i)).addAll(asList(mapper.treeToValue(pages.get(i).get(recordsAttribute), entitiesClass)));
         }
-        while (offset < response.get("total_items").asInt());
         return entities;
     }
 
+    private Callable<ObjectNode> pageFetch(final String url)
+    {
+        return new Callable<ObjectNode>()
+        {
+            @Override
+            public ObjectNode call()
+            {
+                return jsonParser.parseJsonObject(retryable.get(url));
+            }
+        };
+    }
+
+    /**
+     * Run metadata requests at the same time on the client's threads, up to {@link #MAX_CONCURRENT_METADATA_REQUESTS}.
+     * The requests still go through the concurrency limit of the credential. Requests must not run other requests
+     * through this, so that they never wait for the threads they hold.
+     *
+     * @param calls the requests
+     * @return the results, in the order of the requests
+     */
+    private <T> List<T> invokeConcurrently(final List<Callable<T>> calls) throws JsonProcessingException
+    {
+        List<T> results = new ArrayList<>(calls.size());
+        if (calls.size() <= 1) {
+            for (Callable<T> call : calls) {
+                results.add(call(call));
+            }
+            return results;
+        }
+
+        if (metadataExecutor == null) {
+            metadataExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_METADATA_REQUESTS,
+                                                            new ThreadFactoryBuilder()
+                                                                    .setNameFormat("embulk-output-mailchimp-metadata-%d")
+                                                                    .setDaemon(true)
+                                                                    .build());
+        }
+        try {
+            for (Future<T> future : metadataExecutor.invokeAll(calls)) {
+                results.add(future.get());
+            }
+            return results;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof JsonProcessingException) {
+                throw (JsonProcessingException) e.getCause();
+            }
+            Throwables.propagateIfPossible(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static <T> T call(final Callable<T> call) throws JsonProcessingException
+    {
+        try {
+            return call.call();
+        }
+        catch (JsonProcessingException | RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void findList(final PluginTask task)
     {
-        try (MailChimpRetryable retryable = new MailChimpRetryable(task)) {
-            jsonParser.parseJsonObject(retryable.get(format("/lists/{0}",
-                                                                          task.getListId())));
+        try {
+            ObjectNode list = jsonParser.parseJsonObject(retryable.get(format("/lists/{0}?fields=id,stats.merge_field_count",
+                                                                              task.getListId())));
+            JsonNode stats = list.get("stats");
+            if (stats != null && stats.has("merge_field_count")) {
+                mergeFieldCount = stats.get("merge_field_count").asInt();
+            }
         }
         catch (HttpResponseException hre) {
             throw new ConfigException("The `list id` could not be found.");
@@ -271,14 +450,35 @@ public class MailChimpClient
         return page < totalPage;
     }
 
-    public void avoidFloodAPI(final String reason, final long millis)
+    /**
+     * Gets the number of merge fields of the list, as told by the check of the list when the client was created.
+     *
+     * @return the number of merge fields, or -1 if the list wasn't checked
+     */
+    public int getMergeFieldCount()
     {
-        try {
-            LOG.info("{} in {}ms...", reason, millis);
-            Thread.sleep(millis);
-        }
-        catch (InterruptedException e) {
-            LOG.warn("Failed to sleep: {}", e.getMessage());
+        return mergeFieldCount;
+    }
+
+    /**
+     * Gets the total time requests waited for a permit of the credential shared with other tasks.
+     *
+     * @return the wait time in milliseconds
+     */
+    public long getConcurrencyWaitMillis()
+    {
+        return retryable.getConcurrencyWaitMillis();
+    }
+
+    /**
+     * Stop the threads of metadata requests, and release the http client shared with other tasks.
+     */
+    @Override
+    public void close()
+    {
+        if (metadataExecutor != null) {
+            metadataExecutor.shutdownNow();
         }
+        retryable.close();
     }
 }
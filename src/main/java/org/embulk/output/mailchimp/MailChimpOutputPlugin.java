@@ -1,6 +1,13 @@
 package org.embulk.output.mailchimp;
 
 import org.embulk.base.restclient.RestClientOutputPluginBase;
+import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.output.mailchimp.helper.EmailFingerprintIndex;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
 import org.embulk.util.config.ConfigMapperFactory;
 
 /**
@@ -11,11 +18,57 @@ public class MailChimpOutputPlugin
 {
     public static final ConfigMapperFactory CONFIG_MAPPER_FACTORY = ConfigMapperFactory.builder().addDefaultModules().build();
 
+    private final MailChimpOutputPluginDelegate delegate;
+
     /**
      * Instantiates a new @{@link MailChimpOutputPlugin}.
      */
     public MailChimpOutputPlugin()
     {
-        super(CONFIG_MAPPER_FACTORY, MailChimpOutputPluginDelegate.PluginTask.class, new MailChimpOutputPluginDelegate());
+        this(new MailChimpOutputPluginDelegate());
+    }
+
+    private MailChimpOutputPlugin(final MailChimpOutputPluginDelegate delegate)
+    {
+        super(CONFIG_MAPPER_FACTORY, MailChimpOutputPluginDelegate.PluginTask.class, delegate);
+        this.delegate = delegate;
+    }
+
+    /**
+     * Override @{@link RestClientOutputPluginBase#transaction(ConfigSource, Schema, int, OutputPlugin.Control)}
+     * The list's metadata is resolved once the config is validated, right before the tasks run, so that
+     * validating the config doesn't request MailChimp. The index of emails shared by the tasks is dropped once
+     * they are done, whether they succeeded or not.
+     */
+    @Override
+    public ConfigDiff transaction(final ConfigSource config, final Schema schema, final int taskCount,
+                                  final OutputPlugin.Control control)
+    {
+        return super.transaction(config, schema, taskCount, taskSource -> {
+            final MailChimpOutputPluginDelegate.PluginTask task = CONFIG_MAPPER_FACTORY.createTaskMapper()
+                    .map(taskSource, MailChimpOutputPluginDelegate.PluginTask.class);
+            try {
+                delegate.resolveListMetadata(task, schema);
+                return control.run(task.toTaskSource());
+            }
+            finally {
+                if (task.getEmailIndexId().isPresent()) {
+                    EmailFingerprintIndex.release(task.getEmailIndexId().get());
+                }
+            }
+        });
+    }
+
+    /**
+     * Override @{@link RestClientOutputPluginBase#open(TaskSource, Schema, int)}
+     * Rows are read straight from the pages by {@link MailChimpPageOutput} instead of going through
+     * the generic service record mapping, which serializes and parses every record again.
+     */
+    @Override
+    public TransactionalPageOutput open(final TaskSource taskSource, final Schema schema, final int taskIndex)
+    {
+        final MailChimpOutputPluginDelegate.PluginTask task = CONFIG_MAPPER_FACTORY.createTaskMapper()
+                .map(taskSource, MailChimpOutputPluginDelegate.PluginTask.class);
+        return new MailChimpPageOutput(schema, new MailChimpRecordBuffer(schema, task));
     }
 }
@@ -1,5 +1,6 @@
 package org.embulk.output.mailchimp;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import org.embulk.base.restclient.RestClientOutputPluginDelegate;
 import org.embulk.base.restclient.RestClientOutputTaskBase;
 import org.embulk.base.restclient.jackson.JacksonServiceRequestMapper;
@@ -9,7 +10,12 @@ import org.embulk.base.restclient.record.RecordBuffer;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigException;
 import org.embulk.config.TaskReport;
+import org.embulk.output.mailchimp.helper.MailChimpMetadataCache;
 import org.embulk.output.mailchimp.model.AuthMethod;
+import org.embulk.output.mailchimp.model.DuplicatePolicy;
+import org.embulk.output.mailchimp.model.Interest;
+import org.embulk.output.mailchimp.model.MergeField;
+import org.embulk.output.mailchimp.model.RepeatedEmailPolicy;
 import org.embulk.spi.DataException;
 import org.embulk.spi.Schema;
 import org.embulk.util.config.Config;
@@ -17,10 +23,14 @@ import org.embulk.util.config.ConfigDefault;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
 
 import static com.google.common.base.Joiner.on;
 import static com.google.common.base.Strings.isNullOrEmpty;
@@ -71,6 +81,10 @@ public class MailChimpOutputPluginDelegate
         @ConfigDefault("null")
         Optional<String> getAccessToken();
 
+        @Config("endpoint")
+        @ConfigDefault("null")
+        Optional<String> getEndpoint();
+
         @Config("list_id")
         String getListId();
 
@@ -118,9 +132,107 @@ public class MailChimpOutputPluginDelegate
         @ConfigDefault("500")
         int getMaxRecordsPerRequest();
 
+        @Config("adaptive_batch_size")
+        @ConfigDefault("false")
+        boolean getAdaptiveBatchSize();
+
+        @Config("min_records_per_request")
+        @ConfigDefault("50")
+        int getMinRecordsPerRequest();
+
+        @Config("target_request_millis")
+        @ConfigDefault("5000")
+        int getTargetRequestMillis();
+
+        @Config("max_bytes_per_request")
+        @ConfigDefault("4194304")
+        int getMaxBytesPerRequest();
+
         @Config("sleep_between_requests_millis")
         @ConfigDefault("3000")
         int getSleepBetweenRequestsMillis();
+
+        @Config("max_requests_per_second")
+        @ConfigDefault("null")
+        Optional<Double> getMaxRequestsPerSecond();
+
+        @Config("request_burst")
+        @ConfigDefault("5")
+        int getRequestBurst();
+
+        @Config("max_concurrent_requests")
+        @ConfigDefault("10")
+        int getMaxConcurrentRequests();
+
+        @Config("max_in_flight_requests")
+        @ConfigDefault("1")
+        int getMaxInFlightRequests();
+
+        @Config("use_batch_operations")
+        @ConfigDefault("false")
+        boolean getUseBatchOperations();
+
+        @Config("batch_operations_size")
+        @ConfigDefault("50000")
+        int getBatchOperationsSize();
+
+        @Config("batch_operations_poll_interval_millis")
+        @ConfigDefault("5000")
+        int getBatchOperationsPollIntervalMillis();
+
+        @Config("encoding_threads")
+        @ConfigDefault("1")
+        int getEncodingThreads();
+
+        @Config("duplicate_policy")
+        @ConfigDefault("none")
+        DuplicatePolicy getDuplicatePolicy();
+
+        @Config("repeated_email_policy")
+        @ConfigDefault("send")
+        RepeatedEmailPolicy getRepeatedEmailPolicy();
+
+        @Config("isolate_rejected_records")
+        @ConfigDefault("false")
+        boolean getIsolateRejectedRecords();
+
+        @Config("use_gzip")
+        @ConfigDefault("false")
+        boolean getUseGzip();
+
+        @Config("metadata_cache_dir")
+        @ConfigDefault("null")
+        Optional<String> getMetadataCacheDir();
+
+        @Config("metadata_cache_ttl_seconds")
+        @ConfigDefault("86400")
+        int getMetadataCacheTtlSeconds();
+
+        // Endpoint and list metadata resolved once in the transaction and shipped to tasks
+        @Config("resolved_endpoint")
+        @ConfigDefault("null")
+        Optional<String> getResolvedEndpoint();
+
+        void setResolvedEndpoint(Optional<String> resolvedEndpoint);
+
+        @Config("merge_fields_by_tag")
+        @ConfigDefault("null")
+        Optional<Map<String, MergeField>> getMergeFieldsByTag();
+
+        void setMergeFieldsByTag(Optional<Map<String, MergeField>> mergeFieldsByTag);
+
+        @Config("interests_by_category")
+        @ConfigDefault("null")
+        Optional<Map<String, Map<String, Interest>>> getInterestsByCategory();
+
+        void setInterestsByCategory(Optional<Map<String, Map<String, Interest>>> interestsByCategory);
+
+        // Identifies the index of emails shared by the tasks of the job with `repeated_email_policy`
+        @Config("email_index_id")
+        @ConfigDefault("null")
+        Optional<String> getEmailIndexId();
+
+        void setEmailIndexId(Optional<String> emailIndexId);
     }
 
     /**
@@ -145,6 +257,47 @@ public class MailChimpOutputPluginDelegate
             }
         }
 
+        if (task.getMaxRequestsPerSecond().isPresent() && !(task.getMaxRequestsPerSecond().get() > 0)) {
+            throw new ConfigException("'max_requests_per_second' must be greater than 0");
+        }
+
+        if (task.getRequestBurst() < 1) {
+            throw new ConfigException("'request_burst' must be greater than 0");
+        }
+
+        if (task.getMaxConcurrentRequests() < 1) {
+            throw new ConfigException("'max_concurrent_requests' must be greater than 0");
+        }
+
+        if (task.getMaxInFlightRequests() < 1) {
+            throw new ConfigException("'max_in_flight_requests' must be greater than 0");
+        }
+
+        if (task.getUseBatchOperations() && task.getBatchOperationsSize() < task.getMaxRecordsPerRequest()) {
+            throw new ConfigException("'batch_operations_size' must not be less than 'max_records_per_request'");
+        }
+
+        if (task.getAdaptiveBatchSize()) {
+            if (task.getMinRecordsPerRequest() < 1 || task.getMinRecordsPerRequest() > task.getMaxRecordsPerRequest()) {
+                throw new ConfigException("'min_records_per_request' must be between 1 and 'max_records_per_request'");
+            }
+            if (task.getTargetRequestMillis() < 1) {
+                throw new ConfigException("'target_request_millis' must be greater than 0");
+            }
+        }
+
+        if (task.getMaxBytesPerRequest() < 1) {
+            throw new ConfigException("'max_bytes_per_request' must be greater than 0");
+        }
+
+        if (task.getMetadataCacheTtlSeconds() < 1) {
+            throw new ConfigException("'metadata_cache_ttl_seconds' must be greater than 0");
+        }
+
+        if (task.getEncodingThreads() < 1) {
+            throw new ConfigException("'encoding_threads' must be greater than 0");
+        }
+
         if (isNullOrEmpty(task.getListId())) {
             throw new ConfigException("'list_id' must not be null or empty string");
         }
@@ -165,8 +318,90 @@ public class MailChimpOutputPluginDelegate
                 LOG.warn("Data schema doesn't contain the task's grouping column(s): {}", on(", ").join(categoryNames));
             }
         }
+
+        if (task.getRepeatedEmailPolicy() != RepeatedEmailPolicy.SEND) {
+            task.setEmailIndexId(Optional.of(UUID.randomUUID().toString()));
+        }
     }
 
+    /**
+     * Find the list, the data center of the account, the interest categories and the merge fields once
+     * and keep them in the task, so that tasks start without requesting them again. With `metadata_cache_dir`,
+     * the interest categories and the merge fields of an earlier run are used while they are fresh.
+     * Called by @{@link MailChimpOutputPlugin#transaction} after the task is validated.
+     */
+    void resolveListMetadata(final PluginTask task, final Schema schema)
+    {
+        try (MailChimpClient mailChimpClient = new MailChimpClient(task)) {
+            String endpoint = mailChimpClient.getEndpoint();
+            task.setResolvedEndpoint(Optional.of(endpoint));
+
+            Optional<MailChimpMetadataCache> cache = MailChimpMetadataCache.of(task);
+            Optional<MailChimpMetadataCache.Entry> cached = cache.isPresent()
+                    ? cache.get().read(endpoint, task.getListId())
+                    : Optional.<MailChimpMetadataCache.Entry>empty();
+            if (cached.isPresent() && isFresh(cached.get(), task, mailChimpClient)) {
+                LOG.info("Use cached metadata of list '{}'", task.getListId());
+                task.setInterestsByCategory(Optional.of(cached.get().getInterestsByCategory()));
+                task.setMergeFieldsByTag(Optional.of(cached.get().getMergeFieldsByTag()));
+                return;
+            }
+
+            Map<String, Map<String, Interest>> interestsByCategory = mailChimpClient.interestsByCategory(task, schema);
+            Map<String, MergeField> mergeFieldsByTag = mailChimpClient.mergeFieldByTag(task);
+            if (cached.isPresent()) {
+                logChangedInterests(cached.get(), interestsByCategory);
+            }
+            task.setInterestsByCategory(Optional.of(interestsByCategory));
+            task.setMergeFieldsByTag(Optional.of(mergeFieldsByTag));
+            if (cache.isPresent()) {
+                cache.get().write(endpoint, task.getListId(),
+                                  new MailChimpMetadataCache.Entry(mailChimpClient.getMergeFieldCount(), mergeFieldsByTag, interestsByCategory));
+            }
+        }
+        catch (JsonProcessingException jpe) {
+            throw new ConfigException("Unable to read the list's metadata", jpe);
+        }
+    }
+
+    /**
+     * Whether a cached entry still matches the list, from the list request alone: the number of merge fields
+     * is unchanged, and it has the interests of every grouping column of the task. Changed interests are
+     * picked up when the entry expires.
+     */
+    private static boolean isFresh(final MailChimpMetadataCache.Entry entry, final PluginTask task,
+                                   final MailChimpClient mailChimpClient)
+    {
+        int mergeFieldCount = mailChimpClient.getMergeFieldCount();
+        if (mergeFieldCount < 0 || entry.getMergeFieldCount() != mergeFieldCount) {
+            return false;
+        }
+        List<String> categories = task.getGroupingColumns().orElse(Collections.<String>emptyList());
+        return entry.getInterestsByCategory().keySet().containsAll(categories);
+    }
+
+    /**
+     * Log the categories whose number of interests changed since they were cached.
+     */
+    private static void logChangedInterests(final MailChimpMetadataCache.Entry entry,
+                                            final Map<String, Map<String, Interest>> interestsByCategory)
+    {
+        if (entry.getInterestCountByCategory() == null) {
+            return;
+        }
+        for (Map.Entry<String, Map<String, Interest>> category : interestsByCategory.entrySet()) {
+            Integer cachedCount = entry.getInterestCountByCategory().get(category.getKey());
+            if (cachedCount != null && cachedCount != category.getValue().size()) {
+                LOG.info("Interests of category '{}' changed since they were cached: {} then, {} now",
+                         category.getKey(), cachedCount, category.getValue().size());
+            }
+        }
+    }
+
+    /**
+     * The record buffer of the restclient output, fed by records of {@link #buildServiceRequestMapper(PluginTask)}.
+     * @{@link MailChimpOutputPlugin#open} feeds the same buffer by rows of pages instead.
+     */
     @Override
     public RecordBuffer buildRecordBuffer(PluginTask task, Schema schema, int taskIndex)
     {
@@ -187,6 +422,13 @@ public class MailChimpOutputPluginDelegate
     {
         long totalInserted = 0;
         int totalError = 0;
+        long totalConcurrencyWaitMillis = 0;
+        long totalPayloadPoolHits = 0;
+        long totalPayloadPoolMisses = 0;
+        long totalRetriedBatches = 0;
+        long totalCollapsed = 0;
+        long totalRepeated = 0;
+        Map<Integer, Long> batchSizeHistogram = new TreeMap<>();
         for (TaskReport taskReport : taskReports) {
             if (taskReport.has("pushed")) {
                 totalInserted += taskReport.get(Long.class, "pushed");
@@ -194,8 +436,53 @@ public class MailChimpOutputPluginDelegate
             if (taskReport.has("error_count")) {
                 totalError += taskReport.get(Integer.class, "error_count");
             }
+            if (taskReport.has("concurrency_wait_millis")) {
+                totalConcurrencyWaitMillis += taskReport.get(Long.class, "concurrency_wait_millis");
+            }
+            if (taskReport.has("collapsed_duplicates")) {
+                totalCollapsed += taskReport.get(Long.class, "collapsed_duplicates");
+            }
+            if (taskReport.has("repeated_emails")) {
+                totalRepeated += taskReport.get(Long.class, "repeated_emails");
+            }
+            if (taskReport.has("retried_batches")) {
+                totalRetriedBatches += taskReport.get(Long.class, "retried_batches");
+            }
+            if (taskReport.has("records_per_request_histogram")) {
+                Map<?, ?> histogram = taskReport.get(Map.class, "records_per_request_histogram");
+                for (Map.Entry<?, ?> entry : histogram.entrySet()) {
+                    Integer bucket = Integer.valueOf(entry.getKey().toString());
+                    long count = ((Number) entry.getValue()).longValue();
+                    Long total = batchSizeHistogram.get(bucket);
+                    batchSizeHistogram.put(bucket, total == null ? count : total + count);
+                }
+            }
+            if (taskReport.has("final_records_per_request") && task.getAdaptiveBatchSize()) {
+                LOG.info("A task settled on {} records per request", taskReport.get(Integer.class, "final_records_per_request"));
+            }
+            if (taskReport.has("payload_pool_hits")) {
+                totalPayloadPoolHits += taskReport.get(Long.class, "payload_pool_hits");
+                totalPayloadPoolMisses += taskReport.get(Long.class, "payload_pool_misses");
+            }
         }
         LOG.info("Pushed completed. {} records", totalInserted);
+        if (totalConcurrencyWaitMillis > 0) {
+            LOG.info("Tasks waited {} ms in total for concurrent requests of the account", totalConcurrencyWaitMillis);
+        }
+        if (!batchSizeHistogram.isEmpty()) {
+            LOG.info("Batch requests by number of records, up to: {}", batchSizeHistogram);
+        }
+        if (totalCollapsed > 0) {
+            LOG.info("Collapsed {} duplicated records by {}", totalCollapsed, task.getDuplicatePolicy().getType());
+        }
+        if (task.getEmailIndexId().isPresent()) {
+            LOG.info("{} records of emails sent earlier in the job were {}", totalRepeated,
+                     task.getRepeatedEmailPolicy() == RepeatedEmailPolicy.SKIP ? "skipped" : "deferred");
+        }
+        if (totalRetriedBatches > 0) {
+            LOG.info("Retried {} batch requests in total", totalRetriedBatches);
+        }
+        LOG.info("Payload buffers: {} reused, {} allocated", totalPayloadPoolHits, totalPayloadPoolMisses);
         // When atomic upsert is true, client expects all records are done properly.
         if (task.getAtomicUpsert() && totalError > 0) {
             LOG.info("Job requires atomic operation for all records. And there were {} errors in processing => Error as job's status", totalError);
@@ -0,0 +1,66 @@
+package org.embulk.output.mailchimp;
+
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+
+import static org.embulk.output.mailchimp.MailChimpOutputPlugin.CONFIG_MAPPER_FACTORY;
+
+/**
+ * A @{@link TransactionalPageOutput} that hands every row of a page to @{@link MailChimpRecordBuffer}
+ * while the @{@link PageReader} is positioned on it, so members are encoded from the column values directly.
+ */
+public class MailChimpPageOutput
+        implements TransactionalPageOutput
+{
+    private final PageReader pageReader;
+    private final MailChimpRecordBuffer recordBuffer;
+
+    /**
+     * Instantiates a new Mail chimp page output.
+     *
+     * @param schema       the schema
+     * @param recordBuffer the record buffer
+     */
+    public MailChimpPageOutput(final Schema schema, final MailChimpRecordBuffer recordBuffer)
+    {
+        this.pageReader = Exec.getPageReader(schema);
+        this.recordBuffer = recordBuffer;
+    }
+
+    @Override
+    public void add(final Page page)
+    {
+        pageReader.setPage(page);
+        while (pageReader.nextRecord()) {
+            recordBuffer.bufferRow(pageReader);
+        }
+    }
+
+    @Override
+    public void finish()
+    {
+        recordBuffer.finish();
+    }
+
+    @Override
+    public void close()
+    {
+        pageReader.close();
+        recordBuffer.close();
+    }
+
+    @Override
+    public void abort()
+    {
+    }
+
+    @Override
+    public TaskReport commit()
+    {
+        return recordBuffer.commitWithTaskReportUpdated(CONFIG_MAPPER_FACTORY.newTaskReport());
+    }
+}
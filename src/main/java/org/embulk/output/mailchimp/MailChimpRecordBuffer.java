@@ -1,50 +1,55 @@
 package org.embulk.output.mailchimp;
 
-import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.JsonNodeFactory;
-import com.fasterxml.jackson.databind.node.NullNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.eclipse.jetty.client.HttpResponseException;
+import org.eclipse.jetty.http.HttpStatus;
 import org.embulk.base.restclient.jackson.JacksonServiceRecord;
 import org.embulk.base.restclient.record.RecordBuffer;
 import org.embulk.base.restclient.record.ServiceRecord;
 import org.embulk.config.TaskReport;
-import org.embulk.output.mailchimp.model.AddressMergeFieldAttribute;
+import org.embulk.output.mailchimp.helper.EmailFingerprintIndex;
+import org.embulk.output.mailchimp.helper.MailChimpRetryPolicy;
+import org.embulk.output.mailchimp.helper.MailChimpRetryable;
+import org.embulk.output.mailchimp.helper.PayloadBuffer;
+import org.embulk.output.mailchimp.helper.PayloadBufferPool;
+import org.embulk.output.mailchimp.model.DuplicatePolicy;
 import org.embulk.output.mailchimp.model.Interest;
 import org.embulk.output.mailchimp.model.MergeField;
+import org.embulk.output.mailchimp.model.RepeatedEmailPolicy;
 import org.embulk.output.mailchimp.model.ReportResponse;
-import org.embulk.spi.Column;
 import org.embulk.spi.DataException;
+import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-
-import static java.lang.String.CASE_INSENSITIVE_ORDER;
-import static java.lang.String.format;
-import static java.util.Collections.singletonList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
+
+import static org.embulk.output.mailchimp.helper.MailChimpHelper.maskEmail;
 import static org.embulk.output.mailchimp.MailChimpOutputPlugin.CONFIG_MAPPER_FACTORY;
 import static org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
-import static org.embulk.output.mailchimp.helper.MailChimpHelper.fromCommaSeparatedString;
-import static org.embulk.output.mailchimp.helper.MailChimpHelper.jsonGetIgnoreCase;
-import static org.embulk.output.mailchimp.helper.MailChimpHelper.orderJsonNode;
-import static org.embulk.output.mailchimp.helper.MailChimpHelper.toJsonNode;
-import static org.embulk.output.mailchimp.model.MemberStatus.PENDING;
-import static org.embulk.output.mailchimp.model.MemberStatus.SUBSCRIBED;
 
 /**
  * Created by thangnc on 4/14/17.
@@ -53,18 +58,38 @@ public class MailChimpRecordBuffer
         extends RecordBuffer
 {
     private static final Logger LOG = LoggerFactory.getLogger(MailChimpRecordBuffer.class);
+    private static final ObjectMapper RECORD_MAPPER = new ObjectMapper();
+    // `{"members":[],"update_existing":false}`
+    private static final int PAYLOAD_ENVELOPE_SIZE = 39;
+    // Batches waiting for their retries, besides those in flight, before reading more records waits for them
+    private static final int MAX_WAITING_BATCHES = 10;
+    // Batches of records deferred by `repeated_email_policy` held in memory before they are sent early
+    private static final int MAX_DEFERRED_BATCHES = 10;
     private final PluginTask task;
     private final MailChimpClient mailChimpClient;
-    private final ObjectMapper mapper;
     private final Schema schema;
     private int requestCount;
+    private long requestBytes;
     private int errorCount;
     private long totalCount;
-    private List<JsonNode> records;
-    private Map<String, Map<String, Interest>> categories;
-    private Map<String, MergeField> availableMergeFields;
-    private List<JsonNode> uniqueRecords;
-    private List<JsonNode> duplicatedRecords;
+    private MemberMappingPlan mappingPlan;
+    private MemberBatchEncoder batchEncoder;
+    private List<String[]> records;
+    private final ExecutorService sender;
+    private final Deque<Future<Integer>> inFlightBatches;
+    private final MailChimpBatchOperations batchOperations;
+    private final List<String[]> deferredDuplicatedRecords;
+    private final PayloadBufferPool payloadPool;
+    private final MailChimpRetryQueue retryQueue;
+    private final MailChimpRetryPolicy retryPolicy;
+    private final AdaptiveBatchSizer batchSizer;
+    private long collapsedCount;
+    private final EmailFingerprintIndex emailIndex;
+    private final List<String[]> deferredRepeatedRecords;
+    private long repeatedCount;
+    // Batches whose emails this task added to the index and which are not sent yet
+    private final Set<MailChimpRetryQueue.Batch> claimingBatches;
+    private final List<String> batchOperationClaims;
 
     /**
      * Instantiates a new Mail chimp abstract record buffer.
@@ -76,41 +101,41 @@ public class MailChimpRecordBuffer
     {
         this.schema = schema;
         this.task = task;
-        this.mapper = new ObjectMapper()
-                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
-                .configure(JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS, false);
         this.records = new ArrayList<>();
-        this.uniqueRecords = new ArrayList<>();
-        this.duplicatedRecords = new ArrayList<>();
+        this.inFlightBatches = new ArrayDeque<>();
+        this.sender = task.getMaxInFlightRequests() > 1
+                ? Executors.newFixedThreadPool(task.getMaxInFlightRequests(),
+                                               new ThreadFactoryBuilder()
+                                                       .setNameFormat("embulk-output-mailchimp-sender-%d")
+                                                       .setDaemon(true)
+                                                       .build())
+                : null;
         this.mailChimpClient = new MailChimpClient(task);
+        this.batchOperations = task.getUseBatchOperations() ? new MailChimpBatchOperations(task, mailChimpClient) : null;
+        this.deferredDuplicatedRecords = new ArrayList<>();
+        // A buffer for every batch in flight and one being encoded
+        this.payloadPool = new PayloadBufferPool(task.getMaxInFlightRequests() + 1, 2 * task.getMaxBytesPerRequest());
+        this.retryQueue = new MailChimpRetryQueue();
+        this.retryPolicy = mailChimpClient.getRetryPolicy();
+        this.batchSizer = AdaptiveBatchSizer.of(task);
+        this.emailIndex = task.getEmailIndexId().isPresent() ? EmailFingerprintIndex.of(task.getEmailIndexId().get()) : null;
+        this.deferredRepeatedRecords = new ArrayList<>();
+        this.claimingBatches = Collections.newSetFromMap(new ConcurrentHashMap<MailChimpRetryQueue.Batch, Boolean>());
+        this.batchOperationClaims = new ArrayList<>();
     }
 
+    /**
+     * Buffer a record built by the service request mapper of @{@link MailChimpOutputPluginDelegate}.
+     * The plugin feeds rows by @{@link MailChimpRecordBuffer#bufferRow(PageReader)} instead, which reads the
+     * column values without building a record first; both make the same member.
+     */
     @Override
     public void bufferRecord(ServiceRecord serviceRecord)
     {
-        JacksonServiceRecord jacksonServiceRecord;
-
         try {
-            jacksonServiceRecord = (JacksonServiceRecord) serviceRecord;
-            JsonNode record = mapper.readTree(jacksonServiceRecord.toString()).get("record");
-
-            requestCount++;
-            totalCount++;
-
-            records.add(record);
-            if (requestCount >= task.getMaxRecordsPerRequest()) {
-                filterDuplicatedRecords();
-                pushData();
-
-                if (totalCount % 1000 == 0) {
-                    LOG.info("Pushed {} records", totalCount);
-                }
-
-                records = new ArrayList<>();
-                uniqueRecords = new ArrayList<>();
-                duplicatedRecords = new ArrayList<>();
-                requestCount = 0;
-            }
+            JsonNode record = RECORD_MAPPER.readTree(((JacksonServiceRecord) serviceRecord).toString()).get("record");
+            buildMappingPlan();
+            bufferRecord(mappingPlan.readRecord(record));
         }
         catch (JsonProcessingException jpe) {
             throw new DataException(jpe);
@@ -120,18 +145,93 @@ public class MailChimpRecordBuffer
         }
     }
 
+    /**
+     * Read the current row of the reader and push the batch once it is full.
+     *
+     * @param reader the page reader positioned on a row
+     */
+    public void bufferRow(final PageReader reader)
+    {
+        try {
+            buildMappingPlan();
+            bufferRecord(mappingPlan.readRow(reader));
+        }
+        catch (JsonProcessingException jpe) {
+            throw new DataException(jpe);
+        }
+    }
+
+    private void bufferRecord(final String[] record) throws JsonProcessingException
+    {
+        int recordBytes = mappingPlan.estimateSize(record);
+
+        // Push the batch first if the record would make it larger than allowed
+        if (requestCount > 0 && requestBytes + recordBytes > task.getMaxBytesPerRequest()) {
+            flushRecords();
+        }
+
+        requestCount++;
+        totalCount++;
+        requestBytes += recordBytes;
+
+        records.add(record);
+        if (requestCount >= batchSizer.getBatchSize()) {
+            flushRecords();
+
+            if (totalCount % 1000 == 0) {
+                LOG.info("Pushed {} records", totalCount);
+            }
+        }
+    }
+
     @Override
     public TaskReport commitWithTaskReportUpdated(TaskReport taskReport)
     {
         try {
             if (records.size() > 0) {
-                filterDuplicatedRecords();
-                pushData();
-                records = new ArrayList<>();
-                uniqueRecords = new ArrayList<>();
-                duplicatedRecords = new ArrayList<>();
+                flushRecords();
+            }
+            // Wait for all batches in flight and waiting for retries to complete
+            awaitQueuedBatches(0);
+            if (batchOperations != null) {
+                batchOperations.awaitResults();
+                batchOperationClaims.clear();
+                errorCount += batchOperations.getErrorCount();
+                // Duplicated records are sent after their first occurrences are done
+                if (!deferredDuplicatedRecords.isEmpty()) {
+                    LOG.info("Start to process {} duplicated record(s) of batch operations", deferredDuplicatedRecords.size());
+                    // In batches of the usual size, which the queue keeps in order for every email
+                    for (List<String[]> batch : partitionByLimits(deferredDuplicatedRecords)) {
+                        enqueue(batch, false);
+                    }
+                    awaitQueuedBatches(0);
+                }
+            }
+            // Records of emails sent earlier are sent after all others of the task
+            if (!deferredRepeatedRecords.isEmpty()) {
+                LOG.info("Start to process {} deferred record(s) of emails sent earlier", deferredRepeatedRecords.size());
+                enqueueDeferredRecords();
+                awaitQueuedBatches(0);
+            }
+            if (retryQueue.getRetries() > 0) {
+                LOG.info("Retried {} batch request(s) in the background", retryQueue.getRetries());
             }
-            return CONFIG_MAPPER_FACTORY.newTaskReport().set("pushed", totalCount).set("error_count", errorCount);
+            long concurrencyWaitMillis = mailChimpClient.getConcurrencyWaitMillis();
+            if (concurrencyWaitMillis > 0) {
+                LOG.info("Requests waited {} ms in total for other tasks of the same account", concurrencyWaitMillis);
+            }
+            LOG.info("Payload buffers: {} reused, {} allocated", payloadPool.getHits(), payloadPool.getMisses());
+            return CONFIG_MAPPER_FACTORY.newTaskReport()
+                    .set("pushed", totalCount)
+                    .set("error_count", errorCount)
+                    .set("concurrency_wait_millis", concurrencyWaitMillis)
+                    .set("retried_batches", retryQueue.getRetries())
+                    .set("collapsed_duplicates", collapsedCount)
+                    .set("repeated_emails", repeatedCount)
+                    .set("final_records_per_request", batchSizer.getBatchSize())
+                    .set("records_per_request_histogram", batchSizeHistogram())
+                    .set("payload_pool_hits", payloadPool.getHits())
+                    .set("payload_pool_misses", payloadPool.getMisses());
         }
         catch (JsonProcessingException jpe) {
             throw new DataException(jpe);
@@ -147,194 +247,530 @@ public class MailChimpRecordBuffer
     @Override
     public void close()
     {
-//      // Do not close here
+        if (sender != null) {
+            sender.shutdownNow();
+        }
+        // The task failed before sending these emails, so later tasks of the job must not take them as sent
+        for (MailChimpRetryQueue.Batch batch : claimingBatches) {
+            withdrawClaims(batch);
+        }
+        if (emailIndex != null) {
+            for (String email : batchOperationClaims) {
+                emailIndex.remove(email);
+            }
+            batchOperationClaims.clear();
+        }
+        if (batchEncoder != null) {
+            batchEncoder.close();
+        }
+        mailChimpClient.close();
     }
 
     /**
-     * Receive data and build payload json that contains subscribers
-     *
-     * @param data the data
-     * @param task the task
-     * @return the object node
+     * Resolve the mapping plan from the interest categories and merge fields of the list before the first row
+     * is read. They are normally resolved by the transaction, and fetched here only if the task doesn't have them.
      */
-    private ObjectNode processSubcribers(final List<JsonNode> data, final PluginTask task)
-            throws JsonProcessingException
+    private void buildMappingPlan() throws JsonProcessingException
     {
-        // Should loop the names and get the id of interest categories.
-        // The reason why we put categories validation here because we can not share data between instance.
-        if (categories == null) {
-            categories = mailChimpClient.interestsByCategory(task, schema);
+        if (mappingPlan != null) {
+            return;
         }
 
+        // Should loop the names and get the id of interest categories, unless the transaction did.
+        Map<String, Map<String, Interest>> categories = task.getInterestsByCategory().isPresent()
+                ? task.getInterestsByCategory().get()
+                : mailChimpClient.interestsByCategory(task, schema);
+
         // Extract merge fields detail
-        if (availableMergeFields == null) {
-            availableMergeFields = mailChimpClient.mergeFieldByTag(task);
+        Map<String, MergeField> availableMergeFields = task.getMergeFieldsByTag().isPresent()
+                ? task.getMergeFieldsByTag().get()
+                : mailChimpClient.mergeFieldByTag(task);
+
+        mappingPlan = MemberMappingPlan.build(schema, task, availableMergeFields, categories);
+        batchEncoder = new MemberBatchEncoder(mappingPlan, task.getEncodingThreads());
+    }
+
+    /**
+     * Receive rows and write the payload json that contains subscribers, member by member,
+     * into a pooled buffer. The caller releases the buffer once the payload is no longer needed.
+     *
+     * @param data     the data
+     * @param task     the task
+     * @param compress whether the payload is gzipped while written
+     * @return the payload
+     */
+    private PayloadBuffer processSubcribers(final List<String[]> data, final PluginTask task, final boolean compress)
+    {
+        int estimatedSize = PAYLOAD_ENVELOPE_SIZE;
+        for (String[] row : data) {
+            estimatedSize += mappingPlan.estimateSize(row);
+        }
+        PayloadBuffer payload = payloadPool.acquire(compress ? estimatedSize / 4 : estimatedSize);
+        try {
+            batchEncoder.writePayload(data, task.getUpdateExisting(), compress ? new GZIPOutputStream(payload) : payload);
+        }
+        catch (IOException e) {
+            payloadPool.release(payload);
+            throw new DataException(e);
         }
+        return payload;
+    }
 
-        // Required merge fields
-        Map<String, String> map = new HashMap<>();
-        map.put("FNAME", task.getFnameColumn());
-        map.put("LNAME", task.getLnameColumn());
+    /**
+     * Queue the buffered records and send the batches which are ready, on the caller's thread or, with
+     * `max_in_flight_requests` greater than 1, on a sender thread. In that case this blocks only while the
+     * maximum number of batches are in flight. A batch failing for a retryable reason waits in the queue for
+     * its retry meanwhile, so this blocks for retries only if too many batches are waiting.
+     */
+    private void flushRecords() throws JsonProcessingException
+    {
+        List<String[]> collapsed = task.getDuplicatePolicy() == DuplicatePolicy.NONE ? records : collapseDuplicates(records);
+        final List<String[]> batch = emailIndex == null ? collapsed : filterRepeatedEmails(collapsed);
+        records = new ArrayList<>();
+        requestCount = 0;
+        requestBytes = 0;
+        if (batch.isEmpty()) {
+            return;
+        }
 
-        List<JsonNode> subscribersList = data.stream()
-                .map(contactMapper(map))
-                .collect(Collectors.toList());
+        if (batchOperations != null) {
+            List<String[]> uniqueRecords = new ArrayList<>();
+            filterDuplicatedRecords(batch, uniqueRecords, deferredDuplicatedRecords);
+            if (emailIndex != null) {
+                for (String[] record : uniqueRecords) {
+                    batchOperationClaims.add(mappingPlan.emailKeyOf(record));
+                }
+            }
+            // Escaped into the upload of operations, so the pooled payload is free right after
+            PayloadBuffer payload = processSubcribers(uniqueRecords, task, false);
+            try {
+                batchOperations.add(payload, uniqueRecords.size());
+            }
+            finally {
+                payloadPool.release(payload);
+            }
+            return;
+        }
 
-        ObjectNode subscribers = JsonNodeFactory.instance.objectNode();
-        subscribers.putArray("members").addAll(subscribersList);
-        subscribers.put("update_existing", task.getUpdateExisting());
-        return subscribers;
+        enqueue(batch, emailIndex != null);
+        if (deferredRepeatedRecords.size() >= MAX_DEFERRED_BATCHES * task.getMaxRecordsPerRequest()) {
+            LOG.info("Send {} deferred record(s) of emails sent earlier before the end of the task, to bound memory",
+                     deferredRepeatedRecords.size());
+            enqueueDeferredRecords();
+        }
+        awaitQueuedBatches(task.getMaxInFlightRequests() + MAX_WAITING_BATCHES);
     }
 
-    private Function<JsonNode, JsonNode> contactMapper(final Map<String, String> allowColumns)
+    /**
+     * Queue a batch.
+     *
+     * @param batch        the records
+     * @param claimsEmails whether its emails were added to the index by this task, to be removed if it fails
+     */
+    private void enqueue(final List<String[]> batch, final boolean claimsEmails) throws JsonProcessingException
     {
-        return input -> {
-            ObjectNode property = JsonNodeFactory.instance.objectNode();
-            property.put("email_address", input.findPath(task.getEmailColumn()).asText());
-            property.put("status", task.getDoubleOptIn() ? PENDING.getType() : SUBSCRIBED.getType());
-            ObjectNode mergeFields = JsonNodeFactory.instance.objectNode();
-            for (String allowColumn : allowColumns.keySet()) {
-                String value = input.hasNonNull(allowColumns.get(allowColumn)) ? input.findValue(allowColumns.get(allowColumn)).asText() : "";
-                mergeFields.put(allowColumn, value);
-            }
-
-            // Update additional merge fields if exist
-            if (task.getMergeFields().isPresent() && !task.getMergeFields().get().isEmpty()) {
-                Map<String, String> columnNameCaseInsensitiveLookup = new TreeMap<>(CASE_INSENSITIVE_ORDER);
-                for (Column col : schema.getColumns()) {
-                    columnNameCaseInsensitiveLookup.put(col.getName(), col.getName());
-                }
-                Map<String, MergeField> availableMergeFieldsCaseInsensitiveLookup = new TreeMap<>(CASE_INSENSITIVE_ORDER);
-                availableMergeFieldsCaseInsensitiveLookup.putAll(availableMergeFields);
+        Set<String> emails = new HashSet<>();
+        for (String[] record : batch) {
+            emails.add(mappingPlan.emailKeyOf(record));
+        }
+        // The first occurrences of every email, then the second ones, and so on, so that the records of
+        // an email are applied in the order they were read
+        List<List<String[]>> rounds = splitIntoRounds(batch);
+        if (rounds.size() > 1) {
+            LOG.info("Batch has {} duplicated record(s), push them in {} more round(s)",
+                     batch.size() - rounds.get(0).size(), rounds.size() - 1);
+        }
+        MailChimpRetryQueue.Batch queued = retryQueue.add(batch, rounds, emails);
+        if (claimsEmails) {
+            claimingBatches.add(queued);
+        }
+        sendReadyBatches();
+    }
 
-                for (String field : task.getMergeFields().get()) {
-                    if (!columnNameCaseInsensitiveLookup.containsKey(field)) {
-                        LOG.warn(format("Field '%s' is configured on data transfer but cannot be found on any columns.", field));
-                        continue;
-                    }
-                    String columnName = columnNameCaseInsensitiveLookup.get(field);
-                    if (!availableMergeFieldsCaseInsensitiveLookup.containsKey(columnName)) {
-                        LOG.warn(format("Field '%s' is configured on data transfer but is not predefined on Mailchimp.", field));
-                        continue;
-                    }
+    private void enqueueDeferredRecords() throws JsonProcessingException
+    {
+        for (List<String[]> batch : partitionByLimits(deferredRepeatedRecords)) {
+            enqueue(batch, false);
+        }
+        deferredRepeatedRecords.clear();
+    }
 
-                    String value = input.hasNonNull(columnName) ? input.findValue(columnName).asText() : "";
-
-                    // Try to convert to Json from string with the merge field's type is address
-                    if (availableMergeFieldsCaseInsensitiveLookup.get(columnName).getType().equals(MergeField.MergeFieldType.ADDRESS.getType())) {
-                        JsonNode addressNode = toJsonNode(value);
-                        if (addressNode instanceof NullNode) {
-                            mergeFields.put(columnName.toUpperCase(), value);
-                        }
-                        else {
-                            mergeFields.set(columnName.toUpperCase(),
-                                    orderJsonNode(addressNode, AddressMergeFieldAttribute.values()));
-                        }
-                    }
-                    else {
-                        mergeFields.put(columnName.toUpperCase(), value);
-                    }
-                }
+    /**
+     * Split records into batches of at most the current batch size, which `adaptive_batch_size` adapts, and
+     * `max_bytes_per_request` estimated bytes, as they are buffered.
+     *
+     * @param records the records
+     * @return the batches
+     */
+    private List<List<String[]>> partitionByLimits(final List<String[]> records)
+    {
+        List<List<String[]>> batches = new ArrayList<>();
+        List<String[]> batch = new ArrayList<>();
+        long bytes = 0;
+        for (String[] record : records) {
+            int recordBytes = mappingPlan.estimateSize(record);
+            if (!batch.isEmpty() && (batch.size() >= batchSizer.getBatchSize() || bytes + recordBytes > task.getMaxBytesPerRequest())) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                bytes = 0;
             }
+            batch.add(record);
+            bytes += recordBytes;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
 
-            property.set("merge_fields", mergeFields);
-
-            // Update interest categories if exist
-            if (task.getGroupingColumns().isPresent() && !task.getGroupingColumns().get().isEmpty()) {
-                property.set("interests", buildInterestCategories(input));
+    /**
+     * Remove the emails of a batch which won't be sent from the index, unless they were there before it.
+     */
+    private void withdrawClaims(final MailChimpRetryQueue.Batch batch)
+    {
+        if (claimingBatches.remove(batch)) {
+            for (String email : batch.getEmails()) {
+                emailIndex.remove(email);
             }
+        }
+    }
 
-            // Update language if exist
-            if (task.getLanguageColumn().isPresent() && !task.getLanguageColumn().get().isEmpty()) {
-                property.put("language", input.findPath(task.getLanguageColumn().get()).asText());
+    /**
+     * Send the queued batches which are ready, in order.
+     */
+    private void sendReadyBatches() throws JsonProcessingException
+    {
+        for (final MailChimpRetryQueue.Batch batch : retryQueue.pollReady(System.currentTimeMillis())) {
+            if (sender == null) {
+                errorCount += sendBatch(batch);
+                continue;
             }
 
-            return property;
-        };
+            while (inFlightBatches.size() >= task.getMaxInFlightRequests()) {
+                errorCount += awaitBatch(inFlightBatches.poll());
+            }
+            inFlightBatches.add(sender.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws JsonProcessingException
+                {
+                    return sendBatch(batch);
+                }
+            }));
+        }
     }
 
-    private ObjectNode buildInterestCategories(final JsonNode input)
+    /**
+     * Wait for batches in flight, or for the retries of waiting batches to be due, until at most
+     * `maxBatches` batches are queued.
+     */
+    private void awaitQueuedBatches(final int maxBatches) throws JsonProcessingException
     {
-        ObjectNode interests = JsonNodeFactory.instance.objectNode();
-
-        if (task.getGroupingColumns().isPresent()) {
-            for (String category : task.getGroupingColumns().get()) {
-                Optional<JsonNode> inputValue = jsonGetIgnoreCase(input, category);
-                if (!inputValue.isPresent()) {
-                    // Silently ignore if the grouping column is absent
-                    continue;
-                }
-                List<String> recordInterests = fromCommaSeparatedString(inputValue.get().asText());
-                // `categories` is guaranteed to contain the `category` as it already did an early check
-                Map<String, Interest> availableInterests = categories.get(category);
-
-                // Only update user-predefined categories if replace interests != true
-                if (!task.getReplaceInterests()) {
-                    for (String recordInterest : recordInterests) {
-                        if (availableInterests.get(recordInterest) != null) {
-                            interests.put(availableInterests.get(recordInterest).getId(), true);
-                        }
+        sendReadyBatches();
+        while (retryQueue.size() > maxBatches) {
+            if (!inFlightBatches.isEmpty()) {
+                errorCount += awaitBatch(inFlightBatches.poll());
+            }
+            else {
+                long waitMillis = retryQueue.millisUntilNextDue(System.currentTimeMillis());
+                if (waitMillis > 0) {
+                    try {
+                        Thread.sleep(waitMillis);
                     }
-                } // Otherwise, force update all categories include user-predefined categories
-                else if (task.getReplaceInterests()) {
-                    for (String availableInterest : availableInterests.keySet()) {
-                        if (recordInterests.contains(availableInterest)) {
-                            interests.put(availableInterests.get(availableInterest).getId(), true);
-                        }
-                        else {
-                            interests.put(availableInterests.get(availableInterest).getId(), false);
-                        }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
                     }
                 }
             }
+            sendReadyBatches();
+        }
+    }
+
+    /**
+     * Push the pending parts of a batch. If a request fails for a retryable reason and the batch has retries
+     * left, the batch is put back to the queue to wait for its retry instead of sleeping here. The retry resumes
+     * at the failed request.
+     *
+     * @param batch the batch
+     * @return the number of failed records of the batch, 0 if it is to be retried
+     */
+    private int sendBatch(final MailChimpRetryQueue.Batch batch) throws JsonProcessingException
+    {
+        try {
+            pushData(batch);
+            retryQueue.complete(batch);
+            claimingBatches.remove(batch);
+            return batch.getErrorCount();
+        }
+        catch (RuntimeException e) {
+            if (!retryPolicy.isRetryable(e) || batch.getRetries() >= retryPolicy.getRetryLimit()) {
+                retryQueue.complete(batch);
+                withdrawClaims(batch);
+                if (batch.getRetries() > 0) {
+                    LOG.warn("Giving up batch of {} record(s) after {} retries", batch.getRecords().size(), batch.getRetries());
+                }
+                throw e;
+            }
+            long previousWaitMillis = batch.getRetries() > 0 ? batch.getWaitMillis() : retryPolicy.getInitialWaitMillis();
+            long waitMillis = retryPolicy.waitMillis(e, previousWaitMillis);
+            LOG.warn("Request of {} record(s) failed, retry the {} record(s) left of the batch in {} ms ({}/{}) while later batches go on: {}",
+                     batch.getPendingParts().peekFirst().size(), batch.getPendingCount(), waitMillis,
+                     batch.getRetries() + 1, retryPolicy.getRetryLimit(), e.getMessage());
+            retryQueue.retryLater(batch, waitMillis, System.currentTimeMillis());
+            return 0;
+        }
+        catch (JsonProcessingException e) {
+            retryQueue.complete(batch);
+            withdrawClaims(batch);
+            throw e;
+        }
+    }
+
+    private int awaitBatch(final Future<Integer> batch) throws JsonProcessingException
+    {
+        try {
+            return batch.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof JsonProcessingException) {
+                throw (JsonProcessingException) e.getCause();
+            }
+            Throwables.propagateIfPossible(e.getCause());
+            throw new RuntimeException(e.getCause());
         }
+    }
 
-        return interests;
+    /**
+     * Gets the number of batch requests by size, rounded up to the next power of 2, keyed by the size as text.
+     */
+    private Map<String, Long> batchSizeHistogram()
+    {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Long> entry : batchSizer.getHistogram().entrySet()) {
+            histogram.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        return histogram;
     }
 
-    private void filterDuplicatedRecords()
+    /**
+     * Keep one record of every email by `duplicate_policy`, in the order of the first records of the emails.
+     *
+     * @param records the records
+     * @return the records of distinct emails
+     */
+    private List<String[]> collapseDuplicates(final List<String[]> records)
+    {
+        Map<String, String[]> recordByEmail = new LinkedHashMap<>();
+        for (String[] record : records) {
+            String email = mappingPlan.emailKeyOf(record);
+            String[] earlier = recordByEmail.get(email);
+            if (earlier == null) {
+                recordByEmail.put(email, record);
+            }
+            else if (task.getDuplicatePolicy() == DuplicatePolicy.LAST_WINS) {
+                recordByEmail.put(email, record);
+            }
+            else if (task.getDuplicatePolicy() == DuplicatePolicy.COALESCE_NON_NULL) {
+                recordByEmail.put(email, mappingPlan.coalesce(earlier, record));
+            }
+        }
+        int collapsed = records.size() - recordByEmail.size();
+        if (collapsed > 0) {
+            LOG.info("Collapsed {} duplicated record(s) by {}", collapsed, task.getDuplicatePolicy().getType());
+            collapsedCount += collapsed;
+        }
+        return new ArrayList<>(recordByEmail.values());
+    }
+
+    /**
+     * Take out the records of emails sent by an earlier batch or another task of the job, to skip them or to
+     * defer them by `repeated_email_policy`. Duplicated emails within the batch are left to `duplicate_policy`.
+     *
+     * @param records the records
+     * @return the records of emails not sent before
+     */
+    private List<String[]> filterRepeatedEmails(final List<String[]> records)
+    {
+        Map<String, Boolean> repeatedByEmail = new HashMap<>();
+        List<String[]> newRecords = new ArrayList<>(records.size());
+        for (String[] record : records) {
+            String email = mappingPlan.emailKeyOf(record);
+            Boolean repeated = repeatedByEmail.get(email);
+            if (repeated == null) {
+                repeated = !emailIndex.add(email);
+                repeatedByEmail.put(email, repeated);
+            }
+            if (!repeated) {
+                newRecords.add(record);
+                continue;
+            }
+            repeatedCount++;
+            if (task.getRepeatedEmailPolicy() == RepeatedEmailPolicy.DEFER) {
+                deferredRepeatedRecords.add(record);
+            }
+        }
+        return newRecords;
+    }
+
+    private void filterDuplicatedRecords(final List<String[]> records,
+                                         final List<String[]> uniqueRecords,
+                                         final List<String[]> duplicatedRecords)
     {
         Set<String> uniqueEmails = new HashSet<>();
-        for (JsonNode node : records) {
-            if (uniqueEmails.contains(node.findPath(task.getEmailColumn()).asText())) {
-                duplicatedRecords.add(node);
+        for (String[] record : records) {
+            String email = mappingPlan.emailKeyOf(record);
+            if (uniqueEmails.contains(email)) {
+                duplicatedRecords.add(record);
             }
             else {
-                uniqueEmails.add(node.findPath(task.getEmailColumn()).asText());
-                uniqueRecords.add(node);
+                uniqueEmails.add(email);
+                uniqueRecords.add(record);
             }
         }
     }
 
-    private void pushData() throws JsonProcessingException
+    /**
+     * Push the pending parts of a batch in order, one request each. A part is taken off the batch once
+     * its request is done, so a failure leaves it and the parts after it pending.
+     *
+     * @param batch the batch
+     */
+    private void pushData(final MailChimpRetryQueue.Batch batch) throws JsonProcessingException
+    {
+        while (!batch.getPendingParts().isEmpty()) {
+            batch.addErrorCount(pushNextPart(batch.getPendingParts()));
+        }
+    }
+
+    /**
+     * Split records into rounds of distinct emails, where the round N holds the N-th occurrence of every email.
+     * Records keep their order within a round.
+     *
+     * @param records the records
+     * @return the rounds, at least one
+     */
+    private List<List<String[]>> splitIntoRounds(final List<String[]> records)
     {
+        List<List<String[]>> rounds = new ArrayList<>();
+        rounds.add(new ArrayList<String[]>(records.size()));
+        Map<String, Integer> occurrences = new HashMap<>();
+        for (String[] record : records) {
+            String email = mappingPlan.emailKeyOf(record);
+            Integer occurrence = occurrences.get(email);
+            int round = occurrence == null ? 0 : occurrence;
+            occurrences.put(email, round + 1);
+            if (round == rounds.size()) {
+                rounds.add(new ArrayList<String[]>());
+            }
+            rounds.get(round).add(record);
+        }
+        return rounds;
+    }
+
+    /**
+     * Push the next part, records of distinct emails, in one request, and take it off the parts once done.
+     * If MailChimp rejects the request as too large, nothing is applied, so the part is replaced by its halves
+     * to be pushed next. With `isolate_rejected_records`, a request rejected as invalid (400) is split the same
+     * way, down to the records MailChimp refuses, which costs about two requests per refused record for every
+     * halving of the batch. A failure of the request leaves the part pending.
+     *
+     * @param parts the pending parts, whose first one is pushed
+     * @return the number of failed records of the request
+     */
+    private int pushNextPart(final Deque<List<String[]>> parts) throws JsonProcessingException
+    {
+        List<String[]> records = parts.peekFirst();
         long startTime = System.currentTimeMillis();
-        ObjectNode subscribers =
-                processSubcribers(uniqueRecords, task);
-        ReportResponse reportResponse = mailChimpClient.push(subscribers, task);
+        // Only the time in exchanges with MailChimp tells how the batch size fares, not the waits for permits
+        long requestMillis = MailChimpRetryable.getThreadRequestMillis();
+        ReportResponse reportResponse;
+        PayloadBuffer subscribers = processSubcribers(records, task, task.getUseGzip());
+        try {
+            reportResponse = mailChimpClient.pushOnce(subscribers, task);
+            // The request is sent once, so the buffer isn't read anymore
+            payloadPool.release(subscribers);
+        }
+        catch (HttpResponseException ex) {
+            // The exchange is complete, so the buffer goes back before the halves take theirs
+            payloadPool.release(subscribers);
+            int status = ex.getResponse().getStatus();
+            boolean rejected = status == HttpStatus.BAD_REQUEST_400 && task.getIsolateRejectedRecords();
+            if (status != HttpStatus.PAYLOAD_TOO_LARGE_413 && !rejected) {
+                if (retryPolicy.isRetryable(ex)) {
+                    batchSizer.onFailure(records.size());
+                }
+                else {
+                    batchSizer.onRejected(records.size());
+                }
+                throw ex;
+            }
+            if (rejected) {
+                batchSizer.onRejected(records.size());
+            }
+            else {
+                batchSizer.onFailure(records.size());
+            }
+            parts.pollFirst();
+            if (records.size() == 1) {
+                if (rejected) {
+                    LOG.error("Record of {} is rejected by MailChimp: {}",
+                              maskEmail(mappingPlan.emailOf(records.get(0))), maskEmail(ex.getMessage()));
+                }
+                else {
+                    LOG.error("Record of {} is too large to push", maskEmail(mappingPlan.emailOf(records.get(0))));
+                }
+                return 1;
+            }
+            int middle = records.size() / 2;
+            LOG.info("Batch of {} record(s) is {}, split it into {} and {} record(s)",
+                     records.size(), rejected ? "rejected" : "too large", middle, records.size() - middle);
+            parts.addFirst(records.subList(middle, records.size()));
+            parts.addFirst(records.subList(0, middle));
+            return 0;
+        }
+        catch (JsonProcessingException | RuntimeException e) {
+            // An exchange aborted on timeout may still be sending the buffer, so it is left to the garbage collector
+            if (!isTimeout(e)) {
+                payloadPool.release(subscribers);
+            }
+            if (retryPolicy.isRetryable(e)) {
+                batchSizer.onFailure(records.size());
+            }
+            throw e;
+        }
 
+        batchSizer.onSuccess(records.size(), subscribersSize(records),
+                             MailChimpRetryable.getThreadRequestMillis() - requestMillis);
+        parts.pollFirst();
         LOG.info("Done with {} record(s). Response from MailChimp: {} records created, {} records updated, {} records failed. Batch took {} ms ",
                  records.size(), reportResponse.getTotalCreated(),
                  reportResponse.getTotalUpdated(),
                  reportResponse.getErrorCount(), System.currentTimeMillis() - startTime);
-        errorCount += reportResponse.getErrors().size();
         mailChimpClient.handleErrors(reportResponse.getErrors());
+        return reportResponse.getErrors().size();
+    }
 
-        mailChimpClient.avoidFloodAPI("Process next request", task.getSleepBetweenRequestsMillis());
-
-        if (duplicatedRecords.size() > 0) {
-            LOG.info("Start to process {} duplicated record(s)", duplicatedRecords.size());
-            for (JsonNode duplicatedRecord : duplicatedRecords) {
-                startTime = System.currentTimeMillis();
-                subscribers = processSubcribers(singletonList(duplicatedRecord), task);
-                reportResponse = mailChimpClient.push(subscribers, task);
+    private long subscribersSize(final List<String[]> records)
+    {
+        long bytes = 0;
+        for (String[] record : records) {
+            bytes += mappingPlan.estimateSize(record);
+        }
+        return bytes;
+    }
 
-                LOG.info("Done. Response from MailChimp: {} records created, {} records updated, {} records failed. Batch took {} ms ",
-                         reportResponse.getTotalCreated(),
-                         reportResponse.getTotalUpdated(),
-                         reportResponse.getErrorCount(), System.currentTimeMillis() - startTime);
-                mailChimpClient.handleErrors(reportResponse.getErrors());
+    private static boolean isTimeout(final Throwable exception)
+    {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException) {
+                return true;
             }
         }
+        return false;
     }
 }
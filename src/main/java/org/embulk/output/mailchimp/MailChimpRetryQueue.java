@@ -0,0 +1,254 @@
+package org.embulk.output.mailchimp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Batches of a task from the moment they are flushed until they are done, so that a batch waiting to be
+ * retried doesn't stall the task. Batches are sent in the order they were added, except that a batch may
+ * overtake an earlier one which waits for its retry, unless they share an email: MailChimp must receive
+ * the records of an email in the order they were read.
+ * <p>
+ * A batch is waiting until {@link #pollReady(long)} hands it out to be sent, then either {@link #complete(Batch)}
+ * or {@link #retryLater(Batch, long, long)} is called for it, possibly from another thread.
+ * <p>
+ * A batch may take several requests, i.e. rounds of duplicated emails or halves of a split batch. The sender
+ * takes a part off the batch once its request is done, so that a retry resumes at the request which failed,
+ * and neither sends again the records MailChimp already applied nor drops the failures counted so far.
+ */
+public class MailChimpRetryQueue
+{
+    private final List<Batch> batches = new LinkedList<>();
+    private long sequence;
+    private long retries;
+
+    /**
+     * Add a batch sent in one request as soon as no earlier batch with any of its emails is pending.
+     *
+     * @param records the records
+     * @param emails  the emails of the records
+     * @return the batch
+     */
+    public Batch add(final List<String[]> records, final Set<String> emails)
+    {
+        return add(records, Collections.singletonList(records), emails);
+    }
+
+    /**
+     * Add a batch to be sent as soon as no earlier batch with any of its emails is pending.
+     *
+     * @param records the records
+     * @param parts   the records of each request of the batch, in the order they are sent
+     * @param emails  the emails of the records
+     * @return the batch
+     */
+    public synchronized Batch add(final List<String[]> records, final List<List<String[]>> parts, final Set<String> emails)
+    {
+        Batch batch = new Batch(sequence++, records, parts, emails);
+        batches.add(batch);
+        return batch;
+    }
+
+    /**
+     * Take the waiting batches which are due and not held back by an earlier pending batch with any of
+     * their emails, in the order they were added. They are pending until completed or retried.
+     *
+     * @param nowMillis the current time
+     * @return the batches to send
+     */
+    public synchronized List<Batch> pollReady(final long nowMillis)
+    {
+        List<Batch> ready = new ArrayList<>();
+        for (int i = 0; i < batches.size(); i++) {
+            Batch batch = batches.get(i);
+            if (batch.sending || batch.dueMillis > nowMillis || isHeldBack(batch, i)) {
+                continue;
+            }
+            batch.sending = true;
+            ready.add(batch);
+        }
+        return ready;
+    }
+
+    /**
+     * Remove a batch which is done, whether it succeeded or failed for good.
+     *
+     * @param batch the batch
+     */
+    public synchronized void complete(final Batch batch)
+    {
+        batches.remove(batch);
+    }
+
+    /**
+     * Put a failed batch back to wait for its retry. It keeps its place before later batches of the same emails.
+     *
+     * @param batch      the batch
+     * @param waitMillis the wait before the retry
+     * @param nowMillis  the current time
+     */
+    public synchronized void retryLater(final Batch batch, final long waitMillis, final long nowMillis)
+    {
+        batch.sending = false;
+        batch.retries++;
+        batch.waitMillis = waitMillis;
+        batch.dueMillis = nowMillis + waitMillis;
+        retries++;
+    }
+
+    /**
+     * Gets the number of pending batches, being sent or waiting.
+     *
+     * @return the number of batches
+     */
+    public synchronized int size()
+    {
+        return batches.size();
+    }
+
+    /**
+     * Gets the time until the earliest waiting batch is due.
+     *
+     * @param nowMillis the current time
+     * @return the wait in milliseconds, 0 if a batch is due, or -1 if no batch is waiting
+     */
+    public synchronized long millisUntilNextDue(final long nowMillis)
+    {
+        long next = -1;
+        for (Batch batch : batches) {
+            if (!batch.sending) {
+                long wait = Math.max(0, batch.dueMillis - nowMillis);
+                next = next < 0 ? wait : Math.min(next, wait);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Gets the number of retries scheduled so far.
+     *
+     * @return the number of retries
+     */
+    public synchronized long getRetries()
+    {
+        return retries;
+    }
+
+    private boolean isHeldBack(final Batch batch, final int index)
+    {
+        Iterator<Batch> earlier = batches.subList(0, index).iterator();
+        while (earlier.hasNext()) {
+            if (!Collections.disjoint(earlier.next().emails, batch.emails)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static class Batch
+    {
+        private final long sequence;
+        private final List<String[]> records;
+        private final Deque<List<String[]>> pendingParts;
+        private final Set<String> emails;
+        private int errorCount;
+        private boolean sending;
+        private long dueMillis;
+        private long waitMillis;
+        private int retries;
+
+        Batch(final long sequence, final List<String[]> records, final List<List<String[]>> parts, final Set<String> emails)
+        {
+            this.sequence = sequence;
+            this.records = records;
+            this.pendingParts = new ArrayDeque<>(parts);
+            this.emails = emails;
+        }
+
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        public List<String[]> getRecords()
+        {
+            return records;
+        }
+
+        /**
+         * Gets the emails of the records, normalized.
+         *
+         * @return the emails
+         */
+        public Set<String> getEmails()
+        {
+            return emails;
+        }
+
+        /**
+         * Gets the parts of the batch left to send, the next one first. Only the thread sending the batch
+         * changes them.
+         *
+         * @return the pending parts
+         */
+        public Deque<List<String[]>> getPendingParts()
+        {
+            return pendingParts;
+        }
+
+        /**
+         * Gets the number of records left to send.
+         *
+         * @return the number of records
+         */
+        public int getPendingCount()
+        {
+            int count = 0;
+            for (List<String[]> part : pendingParts) {
+                count += part.size();
+            }
+            return count;
+        }
+
+        /**
+         * Gets the number of records of the parts sent so far which MailChimp refused.
+         *
+         * @return the error count
+         */
+        public int getErrorCount()
+        {
+            return errorCount;
+        }
+
+        public void addErrorCount(final int count)
+        {
+            errorCount += count;
+        }
+
+        /**
+         * Gets the number of retries of the batch so far.
+         *
+         * @return the number of retries
+         */
+        public int getRetries()
+        {
+            return retries;
+        }
+
+        /**
+         * Gets the last wait before a retry of the batch, 0 if it was never retried.
+         *
+         * @return the wait in milliseconds
+         */
+        public long getWaitMillis()
+        {
+            return waitMillis;
+        }
+    }
+}
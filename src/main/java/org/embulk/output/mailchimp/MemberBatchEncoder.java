@@ -0,0 +1,151 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+import com.google.common.base.Throwables;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Write a batch of rows as members with @{@link MemberMappingPlan}, optionally encoding slices of the batch
+ * on the workers of a @{@link ForkJoinPool}. Members are always written in the order of the rows.
+ */
+public class MemberBatchEncoder
+        implements AutoCloseable
+{
+    /**
+     * Rows encoded by one worker
+     */
+    private static final int MIN_ROWS_PER_WORKER = 50;
+    private static final JsonFactory JSON_FACTORY = new MappingJsonFactory();
+
+    private final MemberMappingPlan mappingPlan;
+    private final ForkJoinPool pool;
+
+    /**
+     * Instantiates a new Member batch encoder.
+     *
+     * @param mappingPlan the mapping plan
+     * @param threads     the number of encoding workers, 1 to encode on the caller's thread
+     */
+    public MemberBatchEncoder(final MemberMappingPlan mappingPlan, final int threads)
+    {
+        this.mappingPlan = mappingPlan;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Write the bulk upsert payload of rows, `{"members": [...], "update_existing": ...}`, member by member.
+     * The stream is closed when the payload is written, which finishes a compressing stream.
+     * <p>
+     * On the caller's thread, every member is written to the stream as soon as it is encoded. With workers,
+     * every slice of rows is encoded into bytes by a worker, and the slices are copied to the stream in order.
+     *
+     * @param rows           the rows
+     * @param updateExisting whether existing members are updated
+     * @param out            the stream
+     */
+    public void writePayload(final List<String[]> rows, final boolean updateExisting, final OutputStream out) throws IOException
+    {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("members");
+            if (pool == null || rows.size() <= MIN_ROWS_PER_WORKER) {
+                for (String[] row : rows) {
+                    mappingPlan.write(row, generator);
+                }
+            }
+            else {
+                // The generator's array stays empty for it, the members are written around it
+                generator.flush();
+                writeSlices(rows, out);
+            }
+            generator.writeEndArray();
+            generator.writeBooleanField("update_existing", updateExisting);
+            generator.writeEndObject();
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private void writeSlices(final List<String[]> rows, final OutputStream out) throws IOException
+    {
+        List<Callable<SliceBuffer>> slices = new ArrayList<>();
+        for (int from = 0; from < rows.size(); from += MIN_ROWS_PER_WORKER) {
+            final List<String[]> slice = rows.subList(from, Math.min(from + MIN_ROWS_PER_WORKER, rows.size()));
+            slices.add(new Callable<SliceBuffer>()
+            {
+                @Override
+                public SliceBuffer call() throws IOException
+                {
+                    return encodeSlice(slice);
+                }
+            });
+        }
+
+        try {
+            boolean first = true;
+            for (Future<SliceBuffer> slice : pool.invokeAll(slices)) {
+                if (!first) {
+                    out.write(',');
+                }
+                slice.get().writeMembersTo(out);
+                first = false;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private SliceBuffer encodeSlice(final List<String[]> rows) throws IOException
+    {
+        SliceBuffer buffer = new SliceBuffer(rows.size() * 256);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer)) {
+            generator.writeStartArray();
+            for (String[] row : rows) {
+                mappingPlan.write(row, generator);
+            }
+            generator.writeEndArray();
+        }
+        return buffer;
+    }
+
+    /**
+     * The bytes of a slice of members encoded as an array, `[...]`.
+     */
+    private static class SliceBuffer
+            extends ByteArrayOutputStream
+    {
+        SliceBuffer(final int initialSize)
+        {
+            super(initialSize);
+        }
+
+        void writeMembersTo(final OutputStream out) throws IOException
+        {
+            // Without the brackets of the array
+            out.write(buf, 1, count - 2);
+        }
+    }
+}
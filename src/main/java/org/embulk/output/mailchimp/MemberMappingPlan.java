@@ -0,0 +1,443 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.base.Joiner;
+import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
+import org.embulk.output.mailchimp.model.AddressMergeFieldAttribute;
+import org.embulk.output.mailchimp.model.Interest;
+import org.embulk.output.mailchimp.model.MergeField;
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.lang.String.CASE_INSENSITIVE_ORDER;
+import static java.lang.String.format;
+import static org.embulk.output.mailchimp.helper.MailChimpHelper.columnValueAsText;
+import static org.embulk.output.mailchimp.helper.MailChimpHelper.fromCommaSeparatedString;
+import static org.embulk.output.mailchimp.helper.MailChimpHelper.normalizeEmail;
+import static org.embulk.output.mailchimp.helper.MailChimpHelper.orderJsonNode;
+import static org.embulk.output.mailchimp.helper.MailChimpHelper.toJsonNode;
+import static org.embulk.output.mailchimp.model.MemberStatus.PENDING;
+import static org.embulk.output.mailchimp.model.MemberStatus.SUBSCRIBED;
+
+/**
+ * The mapping from the task's columns to MailChimp member attributes, resolved once per task from the
+ * @{@link Schema}, the @{@link PluginTask} and the list's merge fields and interest categories.
+ * <p>
+ * A row is read into an array of text values, one slot per used column, by {@link #readRow(PageReader)}
+ * and written as a member straight from the slots by {@link #write(String[], JsonGenerator)}, without building
+ * a tree of the member first.
+ */
+public class MemberMappingPlan
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MemberMappingPlan.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int EMAIL_SLOT = 0;
+    private static final int FNAME_SLOT = 1;
+    private static final int LNAME_SLOT = 2;
+    private static final int LANGUAGE_SLOT = 3;
+    private static final int FIXED_SLOTS = 4;
+    // `{"email_address":"","status":"","merge_fields":{}}` and the separator between members
+    private static final int MEMBER_SIZE = 51;
+    // `,"interests":{}`
+    private static final int INTERESTS_SIZE = 15;
+    // `,"language":""`
+    private static final int LANGUAGE_SIZE = 14;
+
+    private final Column[] columns;
+    private final String status;
+    private final boolean hasLanguage;
+    private final boolean hasInterests;
+    private final MergeFieldEncoder[] mergeFieldEncoders;
+    private final InterestEncoder[] interestEncoders;
+    private final int fixedSize;
+
+    private MemberMappingPlan(final Column[] columns,
+                              final String status,
+                              final boolean hasLanguage,
+                              final boolean hasInterests,
+                              final MergeFieldEncoder[] mergeFieldEncoders,
+                              final InterestEncoder[] interestEncoders)
+    {
+        this.columns = columns;
+        this.status = status;
+        this.hasLanguage = hasLanguage;
+        this.hasInterests = hasInterests;
+        this.mergeFieldEncoders = mergeFieldEncoders;
+        this.interestEncoders = interestEncoders;
+
+        int size = MEMBER_SIZE + status.length();
+        for (MergeFieldEncoder encoder : mergeFieldEncoders) {
+            size += encoder.fixedSize();
+        }
+        if (hasInterests) {
+            size += INTERESTS_SIZE;
+            for (InterestEncoder encoder : interestEncoders) {
+                size += encoder.fixedSize();
+            }
+        }
+        if (hasLanguage) {
+            size += LANGUAGE_SIZE;
+        }
+        this.fixedSize = size;
+    }
+
+    /**
+     * Resolve the columns, merge field tags and interests used by the task.
+     * Configured merge fields that can't be mapped are warned once here.
+     *
+     * @param schema               the schema
+     * @param task                 the task
+     * @param availableMergeFields the list's merge fields by lower case tag
+     * @param categories           the list's interests by category
+     * @return the mapping plan
+     */
+    public static MemberMappingPlan build(final Schema schema,
+                                          final PluginTask task,
+                                          final Map<String, MergeField> availableMergeFields,
+                                          final Map<String, Map<String, Interest>> categories)
+    {
+        Map<String, Column> columnCaseInsensitiveLookup = new TreeMap<>(CASE_INSENSITIVE_ORDER);
+        for (Column col : schema.getColumns()) {
+            columnCaseInsensitiveLookup.put(col.getName(), col);
+        }
+        Map<String, MergeField> availableMergeFieldsCaseInsensitiveLookup = new TreeMap<>(CASE_INSENSITIVE_ORDER);
+        availableMergeFieldsCaseInsensitiveLookup.putAll(availableMergeFields);
+
+        List<Column> columns = new ArrayList<>();
+        columns.add(findColumn(schema, task.getEmailColumn()));
+        columns.add(findColumn(schema, task.getFnameColumn()));
+        columns.add(findColumn(schema, task.getLnameColumn()));
+        boolean hasLanguage = task.getLanguageColumn().isPresent() && !task.getLanguageColumn().get().isEmpty();
+        columns.add(hasLanguage ? findColumn(schema, task.getLanguageColumn().get()) : null);
+
+        List<MergeFieldEncoder> mergeFieldEncoders = new ArrayList<>();
+        mergeFieldEncoders.add(new MergeFieldEncoder(FNAME_SLOT, "FNAME", false));
+        mergeFieldEncoders.add(new MergeFieldEncoder(LNAME_SLOT, "LNAME", false));
+        Map<String, Integer> encoderIndexByTag = new HashMap<>();
+        encoderIndexByTag.put("FNAME", 0);
+        encoderIndexByTag.put("LNAME", 1);
+        for (String field : task.getMergeFields().orElse(Collections.<String>emptyList())) {
+            Column column = columnCaseInsensitiveLookup.get(field);
+            if (column == null) {
+                LOG.warn(format("Field '%s' is configured on data transfer but cannot be found on any columns.", field));
+                continue;
+            }
+            MergeField mergeField = availableMergeFieldsCaseInsensitiveLookup.get(column.getName());
+            if (mergeField == null) {
+                LOG.warn(format("Field '%s' is configured on data transfer but is not predefined on Mailchimp.", field));
+                continue;
+            }
+            boolean isAddress = MergeField.MergeFieldType.ADDRESS.getType().equals(mergeField.getType());
+            MergeFieldEncoder encoder = new MergeFieldEncoder(columns.size(), column.getName().toUpperCase(), isAddress);
+            columns.add(column);
+            // A tag is written once, by the merge field configured last, i.e. `FNAME` from a `fname` column
+            Integer written = encoderIndexByTag.get(encoder.tag);
+            if (written != null) {
+                mergeFieldEncoders.set(written, encoder);
+                continue;
+            }
+            encoderIndexByTag.put(encoder.tag, mergeFieldEncoders.size());
+            mergeFieldEncoders.add(encoder);
+        }
+
+        boolean hasInterests = task.getGroupingColumns().isPresent() && !task.getGroupingColumns().get().isEmpty();
+        List<InterestEncoder> interestEncoders = new ArrayList<>();
+        if (hasInterests) {
+            Set<String> encodedCategories = new HashSet<>();
+            for (String category : task.getGroupingColumns().get()) {
+                Column column = columnCaseInsensitiveLookup.get(category);
+                if (column == null || !encodedCategories.add(category)) {
+                    // Silently ignore if the grouping column is absent, or already written
+                    continue;
+                }
+                // `categories` is guaranteed to contain the `category` as it already did an early check
+                interestEncoders.add(new InterestEncoder(columns.size(), categories.get(category), task.getReplaceInterests()));
+                columns.add(column);
+            }
+        }
+
+        return new MemberMappingPlan(columns.toArray(new Column[0]),
+                                     task.getDoubleOptIn() ? PENDING.getType() : SUBSCRIBED.getType(),
+                                     hasLanguage,
+                                     hasInterests,
+                                     mergeFieldEncoders.toArray(new MergeFieldEncoder[0]),
+                                     interestEncoders.toArray(new InterestEncoder[0]));
+    }
+
+    /**
+     * Read the used columns of the current row of the reader.
+     *
+     * @param reader the page reader positioned on a row
+     * @return the text values by slot
+     */
+    public String[] readRow(final PageReader reader)
+    {
+        String[] row = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            row[i] = columns[i] != null ? columnValueAsText(reader, columns[i]) : "";
+        }
+        return row;
+    }
+
+    /**
+     * Read the used columns of a record built by the service request mapper of the plugin, into the same
+     * text values as {@link #readRow(PageReader)}: JSON values are kept as JSON text and nulls are empty.
+     *
+     * @param record the record, by column name
+     * @return the text values by slot
+     */
+    public String[] readRecord(final JsonNode record)
+    {
+        String[] row = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            JsonNode value = columns[i] != null ? record.get(columns[i].getName()) : null;
+            if (value == null || value.isNull()) {
+                row[i] = "";
+            }
+            else {
+                row[i] = value.isContainerNode() ? value.toString() : value.asText();
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Gets the email of a row read by {@link #readRow(PageReader)}.
+     *
+     * @param row the row
+     * @return the email
+     */
+    public String emailOf(final String[] row)
+    {
+        return row[EMAIL_SLOT];
+    }
+
+    /**
+     * Gets the email of a row as MailChimp compares them, to tell the records of the same member.
+     *
+     * @param row the row
+     * @return the normalized email
+     */
+    public String emailKeyOf(final String[] row)
+    {
+        return normalizeEmail(row[EMAIL_SLOT]);
+    }
+
+    /**
+     * Estimate the size of the member built from a row, in bytes of the request body, without building it.
+     * Values are counted as they are, so escaped or non ASCII characters make the estimate a little short.
+     *
+     * @param row the row
+     * @return the estimated size
+     */
+    public int estimateSize(final String[] row)
+    {
+        int size = fixedSize;
+        for (String value : row) {
+            size += value.length();
+        }
+        return size;
+    }
+
+    /**
+     * Merge a later row of an email into an earlier one: non empty values of the later row overlay those of the
+     * earlier row, and the interests of both rows are unioned.
+     *
+     * @param earlier the earlier row
+     * @param later   the later row of the same email
+     * @return the merged row
+     */
+    public String[] coalesce(final String[] earlier, final String[] later)
+    {
+        String[] row = new String[earlier.length];
+        for (int i = 0; i < row.length; i++) {
+            row[i] = isNullOrEmpty(later[i]) ? earlier[i] : later[i];
+        }
+        for (InterestEncoder encoder : interestEncoders) {
+            Set<String> interests = new LinkedHashSet<>(fromCommaSeparatedString(earlier[encoder.slot]));
+            interests.addAll(fromCommaSeparatedString(later[encoder.slot]));
+            row[encoder.slot] = Joiner.on(",").join(interests);
+        }
+        return row;
+    }
+
+    /**
+     * Build a member from a row read by {@link #readRow(PageReader)}, as {@link #write(String[], JsonGenerator)}
+     * writes it.
+     *
+     * @param row the row
+     * @return the member node
+     */
+    public ObjectNode encode(final String[] row)
+    {
+        TokenBuffer buffer = new TokenBuffer(MAPPER, false);
+        try {
+            write(row, buffer);
+            return MAPPER.readTree(buffer.asParser());
+        }
+        catch (IOException e) {
+            throw new DataException(e);
+        }
+    }
+
+    /**
+     * Write the member of a row read by {@link #readRow(PageReader)}.
+     *
+     * @param row       the row
+     * @param generator the generator, which must have an @{@link com.fasterxml.jackson.core.ObjectCodec} for
+     *                  address merge fields
+     */
+    public void write(final String[] row, final JsonGenerator generator) throws IOException
+    {
+        generator.writeStartObject();
+        generator.writeStringField("email_address", row[EMAIL_SLOT]);
+        generator.writeStringField("status", status);
+
+        generator.writeObjectFieldStart("merge_fields");
+        for (MergeFieldEncoder encoder : mergeFieldEncoders) {
+            encoder.write(row, generator);
+        }
+        generator.writeEndObject();
+
+        // Update interest categories if exist
+        if (hasInterests) {
+            generator.writeObjectFieldStart("interests");
+            for (InterestEncoder encoder : interestEncoders) {
+                encoder.write(row, generator);
+            }
+            generator.writeEndObject();
+        }
+
+        // Update language if exist
+        if (hasLanguage) {
+            generator.writeStringField("language", row[LANGUAGE_SLOT]);
+        }
+        generator.writeEndObject();
+    }
+
+    private static Column findColumn(final Schema schema, final String name)
+    {
+        for (Column column : schema.getColumns()) {
+            if (column.getName().equals(name)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    private static class MergeFieldEncoder
+    {
+        private final int slot;
+        private final String tag;
+        private final boolean isAddress;
+
+        MergeFieldEncoder(final int slot, final String tag, final boolean isAddress)
+        {
+            this.slot = slot;
+            this.tag = tag;
+            this.isAddress = isAddress;
+        }
+
+        int fixedSize()
+        {
+            // `,"TAG":""`
+            return tag.length() + 6;
+        }
+
+        void write(final String[] row, final JsonGenerator generator) throws IOException
+        {
+            String value = row[slot];
+            if (isAddress) {
+                // Try to convert to Json from string with the merge field's type is address
+                JsonNode addressNode = toJsonNode(value);
+                if (addressNode != null && !(addressNode instanceof NullNode)) {
+                    generator.writeFieldName(tag);
+                    generator.writeTree(orderJsonNode(addressNode, AddressMergeFieldAttribute.values()));
+                    return;
+                }
+            }
+            generator.writeStringField(tag, value);
+        }
+    }
+
+    private static class InterestEncoder
+    {
+        private final int slot;
+        private final boolean replaceInterests;
+        private final Map<String, Interest> availableInterests;
+        private final String[] interestNames;
+        private final String[] interestIds;
+
+        InterestEncoder(final int slot, final Map<String, Interest> availableInterests, final boolean replaceInterests)
+        {
+            this.slot = slot;
+            this.replaceInterests = replaceInterests;
+            this.availableInterests = availableInterests;
+            this.interestNames = new String[availableInterests.size()];
+            this.interestIds = new String[availableInterests.size()];
+            int i = 0;
+            for (Map.Entry<String, Interest> entry : availableInterests.entrySet()) {
+                interestNames[i] = entry.getKey();
+                interestIds[i] = entry.getValue().getId();
+                i++;
+            }
+        }
+
+        int fixedSize()
+        {
+            if (!replaceInterests) {
+                // Only the selected interests are written, whose names are counted in the value
+                return 0;
+            }
+            // `,"id":false` for every interest of the category
+            int size = 0;
+            for (String interestId : interestIds) {
+                size += interestId.length() + 9;
+            }
+            return size;
+        }
+
+        void write(final String[] row, final JsonGenerator generator) throws IOException
+        {
+            // Every interest is written once, even if the value names it again
+            Set<String> selected = new LinkedHashSet<>(fromCommaSeparatedString(row[slot]));
+
+            // Only update user-predefined categories if replace interests != true
+            if (!replaceInterests) {
+                for (String recordInterest : selected) {
+                    Interest interest = availableInterests.get(recordInterest);
+                    if (interest != null) {
+                        generator.writeBooleanField(interest.getId(), true);
+                    }
+                }
+                return;
+            }
+
+            // Otherwise, force update all categories include user-predefined categories
+            for (int i = 0; i < interestNames.length; i++) {
+                generator.writeBooleanField(interestIds[i], selected.contains(interestNames[i]));
+            }
+        }
+    }
+}
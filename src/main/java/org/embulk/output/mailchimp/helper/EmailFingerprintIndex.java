@@ -0,0 +1,253 @@
+package org.embulk.output.mailchimp.helper;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.embulk.output.mailchimp.helper.MailChimpHelper.normalizeEmail;
+
+/**
+ * The emails seen by all tasks of a job in this JVM, kept as 64 bit fingerprints of the normalized emails.
+ * <p>
+ * Fingerprints are stored in open addressing tables of primitive longs, split in stripes by the fingerprint,
+ * each locked on its own, so that tasks adding at the same time rarely wait for each other. A table grows
+ * by half once 3/4 full, which keeps it between 11 and 16 bytes per distinct email. Two emails of the same
+ * fingerprint are taken as the same, which is unlikely below billions of emails.
+ */
+public class EmailFingerprintIndex
+{
+    private static final ConcurrentMap<String, EmailFingerprintIndex> INDEXES = new ConcurrentHashMap<>();
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    private static final int STRIPES = 64;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Stripe[] stripes;
+
+    /**
+     * Instantiates a new Email fingerprint index.
+     */
+    public EmailFingerprintIndex()
+    {
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Gets the index shared by the tasks of a job in this JVM, creating it on first use.
+     *
+     * @param indexId the id of the job's index
+     * @return the index
+     */
+    public static EmailFingerprintIndex of(final String indexId)
+    {
+        EmailFingerprintIndex index = INDEXES.get(indexId);
+        if (index == null) {
+            EmailFingerprintIndex created = new EmailFingerprintIndex();
+            index = INDEXES.putIfAbsent(indexId, created);
+            if (index == null) {
+                index = created;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Release the index of a job once its tasks are done.
+     *
+     * @param indexId the id of the job's index
+     */
+    public static void release(final String indexId)
+    {
+        INDEXES.remove(indexId);
+    }
+
+    /**
+     * Add an email, compared case insensitively and regardless of surrounding spaces as MailChimp does.
+     *
+     * @param email the email
+     * @return true if the email was not seen before
+     */
+    public boolean add(final String email)
+    {
+        return add(fingerprint(email));
+    }
+
+    /**
+     * Add a fingerprint.
+     *
+     * @param fingerprint the fingerprint
+     * @return true if the fingerprint was not seen before
+     */
+    public boolean add(final long fingerprint)
+    {
+        // The low bits pick the stripe, so the slot within the stripe is taken from the high bits
+        return stripes[(int) (fingerprint & (STRIPES - 1))].add(fingerprint);
+    }
+
+    /**
+     * Remove an email added by {@link #add(String)}, i.e. once its records failed to be sent, so that it is
+     * not taken as sent by later batches or tasks.
+     *
+     * @param email the email
+     * @return true if the email was present
+     */
+    public boolean remove(final String email)
+    {
+        return remove(fingerprint(email));
+    }
+
+    /**
+     * Remove a fingerprint.
+     *
+     * @param fingerprint the fingerprint
+     * @return true if the fingerprint was present
+     */
+    public boolean remove(final long fingerprint)
+    {
+        return stripes[(int) (fingerprint & (STRIPES - 1))].remove(fingerprint);
+    }
+
+    /**
+     * Gets the number of distinct fingerprints.
+     *
+     * @return the size
+     */
+    public long size()
+    {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the bytes taken by the tables of fingerprints.
+     *
+     * @return the size in bytes
+     */
+    public long tableBytes()
+    {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            bytes += stripe.capacity() * 8L;
+        }
+        return bytes;
+    }
+
+    static long fingerprint(final String email)
+    {
+        return HASH_FUNCTION.hashString(normalizeEmail(email), Charsets.UTF_8).asLong();
+    }
+
+    /**
+     * An open addressing set of longs with linear probing, where 0 marks an empty slot.
+     */
+    private static class Stripe
+    {
+        // 0 is the empty slot, so the fingerprint 0 is kept aside
+        private boolean hasZero;
+        private long[] table = new long[INITIAL_CAPACITY];
+        private int size;
+
+        synchronized boolean add(final long fingerprint)
+        {
+            if (fingerprint == 0) {
+                if (hasZero) {
+                    return false;
+                }
+                hasZero = true;
+                size++;
+                return true;
+            }
+            if (!insert(table, fingerprint)) {
+                return false;
+            }
+            size++;
+            if (size * 4L > table.length * 3L) {
+                grow();
+            }
+            return true;
+        }
+
+        synchronized boolean remove(final long fingerprint)
+        {
+            if (fingerprint == 0) {
+                if (!hasZero) {
+                    return false;
+                }
+                hasZero = false;
+                size--;
+                return true;
+            }
+            int slot = homeSlot(table.length, fingerprint);
+            while (table[slot] != fingerprint) {
+                if (table[slot] == 0) {
+                    return false;
+                }
+                slot = slot + 1 == table.length ? 0 : slot + 1;
+            }
+            // Shift back the fingerprints after the hole which may take it, so that probing never stops early
+            int hole = slot;
+            for (int i = hole + 1 == table.length ? 0 : hole + 1; table[i] != 0; i = i + 1 == table.length ? 0 : i + 1) {
+                int home = homeSlot(table.length, table[i]);
+                boolean homeAfterHole = hole <= i ? home > hole && home <= i : home > hole || home <= i;
+                if (!homeAfterHole) {
+                    table[hole] = table[i];
+                    hole = i;
+                }
+            }
+            table[hole] = 0;
+            size--;
+            return true;
+        }
+
+        synchronized int size()
+        {
+            return size;
+        }
+
+        synchronized int capacity()
+        {
+            return table.length;
+        }
+
+        private void grow()
+        {
+            long[] grown = new long[table.length + table.length / 2];
+            for (long fingerprint : table) {
+                if (fingerprint != 0) {
+                    insert(grown, fingerprint);
+                }
+            }
+            table = grown;
+        }
+
+        private static int homeSlot(final int length, final long fingerprint)
+        {
+            // Map the high bits onto the table, whose length isn't a power of 2
+            return (int) (((fingerprint >>> 32) * length) >>> 32);
+        }
+
+        private static boolean insert(final long[] table, final long fingerprint)
+        {
+            int slot = homeSlot(table.length, fingerprint);
+            while (true) {
+                long existing = table[slot];
+                if (existing == 0) {
+                    table[slot] = fingerprint;
+                    return true;
+                }
+                if (existing == fingerprint) {
+                    return false;
+                }
+                slot = slot + 1 == table.length ? 0 : slot + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.embulk.output.mailchimp.helper;
+
+import com.google.common.io.CharStreams;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.embulk.util.retryhelper.jetty94.Jetty94ResponseReader;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Like {@link PatchedStringJetty94ResponseEntityReader}, but hands the response content over as a stream
+ * for the caller to read and close, so large downloads are never held in memory.
+ */
+public class InputStreamJetty94ResponseReader implements Jetty94ResponseReader<InputStream>
+{
+    private InputStreamResponseListener listener;
+    private final long timeoutMillis;
+
+    public InputStreamJetty94ResponseReader(long timeoutMillis)
+    {
+        this.listener = new InputStreamResponseListener();
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public final Response.Listener getListener()
+    {
+        this.listener = new InputStreamResponseListener();
+        return this.listener;
+    }
+
+    @Override
+    public final Response getResponse() throws Exception
+    {
+        return this.listener.get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public final InputStream readResponseContent() throws Exception
+    {
+        return this.listener.getInputStream();
+    }
+
+    @Override
+    public final String readResponseContentInString() throws Exception
+    {
+        final InputStream inputStream = this.listener.getInputStream();
+        try (InputStreamReader inputStreamReader = new InputStreamReader(inputStream)) {
+            return CharStreams.toString(inputStreamReader);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.embulk.output.mailchimp.helper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pauses requests of all tasks of the JVM to an endpoint for a while when its requests keep failing,
+ * instead of having every task burn through its retries separately.
+ * <p>
+ * The breaker opens after a number of consecutive server errors, timeouts or connection failures.
+ * Once the pause is over, the breaker is half open: a single request goes through as a probe while the
+ * others wait for its outcome. Any response but a server error closes the breaker, and a failed probe
+ * opens it again.
+ */
+public class MailChimpCircuitBreaker
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MailChimpCircuitBreaker.class);
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_MILLIS = 15000;
+    private static final ConcurrentMap<String, MailChimpCircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long openMillis;
+    private int consecutiveFailures;
+    private long openUntil;
+    private boolean halfOpen;
+    private boolean probeInFlight;
+
+    /**
+     * Instantiates a new Mail chimp circuit breaker.
+     *
+     * @param endpoint         the endpoint, for logging
+     * @param failureThreshold the consecutive failures which open the breaker
+     * @param openMillis       the pause once opened
+     */
+    public MailChimpCircuitBreaker(final String endpoint, final int failureThreshold, final long openMillis)
+    {
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Gets the breaker shared by all requests to an endpoint.
+     *
+     * @param endpoint the scheme, host and port
+     * @return the circuit breaker
+     */
+    public static MailChimpCircuitBreaker of(final String endpoint)
+    {
+        return BREAKERS.computeIfAbsent(endpoint, key -> new MailChimpCircuitBreaker(key, FAILURE_THRESHOLD, OPEN_MILLIS));
+    }
+
+    /**
+     * Wait until the breaker lets the request go: it is closed, or it is half open and the request is the probe.
+     * The caller must then report the outcome with {@link #onSuccess()}, {@link #onFailure()} or
+     * {@link #onCancelled()}.
+     */
+    public synchronized void awaitClosed()
+    {
+        try {
+            while (true) {
+                long waitMillis = openUntil - System.currentTimeMillis();
+                if (waitMillis > 0) {
+                    wait(waitMillis);
+                }
+                else if (!halfOpen) {
+                    return;
+                }
+                else if (!probeInFlight) {
+                    LOG.info("Probe requests to {} with a single request", endpoint);
+                    probeInFlight = true;
+                    return;
+                }
+                else {
+                    // Until the probe succeeds or fails
+                    wait();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * A request got a response which isn't a server error.
+     */
+    public synchronized void onSuccess()
+    {
+        consecutiveFailures = 0;
+        if (halfOpen) {
+            LOG.info("Requests to {} go through again", endpoint);
+            halfOpen = false;
+            probeInFlight = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A request failed with a server error, a timeout or a connection failure.
+     */
+    public synchronized void onFailure()
+    {
+        long now = System.currentTimeMillis();
+        if (now < openUntil) {
+            // Requests sent before the breaker opened
+            return;
+        }
+        consecutiveFailures++;
+        if (probeInFlight || consecutiveFailures >= failureThreshold) {
+            LOG.warn("Requests to {} keep failing, pause them for {} ms", endpoint, openMillis);
+            openUntil = now + openMillis;
+            consecutiveFailures = 0;
+            halfOpen = true;
+            probeInFlight = false;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A request let go by {@link #awaitClosed()} was not sent, so another request may probe instead.
+     */
+    public synchronized void onCancelled()
+    {
+        if (probeInFlight) {
+            probeInFlight = false;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.embulk.output.mailchimp.helper;
+
+import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of simultaneous requests to MailChimp per credential across all tasks of the JVM,
+ * as MailChimp limits simultaneous connections per API key.
+ * <p>
+ * Permits are granted in arrival order, so every task gets its turn. The time spent waiting for a permit
+ * is recorded per governor to make contention visible in the task report.
+ * <p>
+ * The permits of a credential are shared by the tasks with the same `max_concurrent_requests`, and are
+ * dropped when the last of them is released, as the http client of the credential is.
+ */
+public class MailChimpConcurrencyGovernor
+{
+    private static final Map<String, Permits> PERMITS = new HashMap<>();
+
+    private final Semaphore semaphore;
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    private MailChimpConcurrencyGovernor(final Semaphore semaphore)
+    {
+        this.semaphore = semaphore;
+    }
+
+    /**
+     * Gets a governor on the permits shared by the task's credential and limit, creating them for the
+     * first task. Every call must be paired with a {@link #release(PluginTask)}.
+     *
+     * @param task the task
+     * @return the concurrency governor
+     */
+    public static synchronized MailChimpConcurrencyGovernor of(final PluginTask task)
+    {
+        String key = keyOf(task);
+        Permits permits = PERMITS.get(key);
+        if (permits == null) {
+            permits = new Permits(task.getMaxConcurrentRequests());
+            PERMITS.put(key, permits);
+        }
+        permits.references++;
+        return new MailChimpConcurrencyGovernor(permits.semaphore);
+    }
+
+    /**
+     * Release the permits of the task, dropping them if no other task uses them.
+     *
+     * @param task the task
+     */
+    public static synchronized void release(final PluginTask task)
+    {
+        String key = keyOf(task);
+        Permits permits = PERMITS.get(key);
+        if (permits != null && --permits.references <= 0) {
+            PERMITS.remove(key);
+        }
+    }
+
+    private static String keyOf(final PluginTask task)
+    {
+        return MailChimpHelper.credentialKey(task) + ":" + task.getMaxConcurrentRequests();
+    }
+
+    /**
+     * Wait for a permit to send a request.
+     */
+    public void acquire()
+    {
+        long start = System.nanoTime();
+        try {
+            semaphore.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Return a permit once the request is complete.
+     */
+    public void releasePermit()
+    {
+        semaphore.release();
+    }
+
+    /**
+     * Gets the total time spent waiting for permits.
+     *
+     * @return the wait time in milliseconds
+     */
+    public long getWaitMillis()
+    {
+        return waitNanos.get() / 1000000;
+    }
+
+    private static class Permits
+    {
+        private final Semaphore semaphore;
+        private int references;
+
+        Permits(final int maxConcurrentRequests)
+        {
+            this.semaphore = new Semaphore(maxConcurrentRequests, true);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.embulk.output.mailchimp.helper;
+
+import com.google.common.base.Throwables;
+
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the API endpoint of each credential's data center for the whole JVM, keyed by
+ * {@link MailChimpHelper#credentialKey(org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask)}.
+ * <p>
+ * The first callers of a credential share a single discovery: one runs it and the others wait for its result.
+ * Endpoints expire after a while, and are invalidated when MailChimp rejects the credential or the host
+ * can't be resolved anymore, so that the next request discovers the endpoint again. The endpoint resolved by
+ * the transaction is skipped for the credential as long as its invalidation lasts, which expires as endpoints do
+ * and ends as soon as a discovery finds the same endpoint again.
+ */
+public final class MailChimpEndpointCache
+{
+    private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Invalidation> INVALIDATED_ENDPOINTS = new ConcurrentHashMap<>();
+
+    private MailChimpEndpointCache()
+    {
+    }
+
+    /**
+     * Gets the endpoint of a credential, discovering it if it isn't cached yet.
+     *
+     * @param key       the credential key
+     * @param resolved  the endpoint already resolved by the transaction, used unless it was invalidated
+     * @param discovery the discovery of the endpoint
+     * @return the endpoint
+     */
+    public static String get(final String key, final Optional<String> resolved, final Callable<String> discovery)
+    {
+        while (true) {
+            Entry entry = ENTRIES.get(key);
+            if (entry != null && entry.isExpired()) {
+                ENTRIES.remove(key, entry);
+                continue;
+            }
+            if (entry == null) {
+                Entry created = resolved.isPresent() && !isInvalidated(key, resolved.get())
+                        ? new Entry(() -> resolved.get())
+                        : new Entry(() -> rediscover(key, discovery));
+                entry = ENTRIES.putIfAbsent(key, created);
+                if (entry == null) {
+                    entry = created;
+                    entry.lookup.run();
+                }
+            }
+            try {
+                return entry.lookup.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e) {
+                // Let the next caller discover again
+                ENTRIES.remove(key, entry);
+                Throwables.propagateIfPossible(e.getCause());
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Forget the endpoint of a credential.
+     *
+     * @param key the credential key
+     */
+    public static void invalidate(final String key)
+    {
+        Entry entry = ENTRIES.remove(key);
+        if (entry != null && entry.lookup.isDone()) {
+            try {
+                INVALIDATED_ENDPOINTS.put(key, new Invalidation(entry.lookup.get()));
+            }
+            catch (InterruptedException | ExecutionException e) {
+                // Failed lookups are not cached anyway
+            }
+        }
+    }
+
+    private static boolean isInvalidated(final String key, final String endpoint)
+    {
+        Invalidation invalidation = INVALIDATED_ENDPOINTS.get(key);
+        if (invalidation == null) {
+            return false;
+        }
+        if (invalidation.isExpired()) {
+            INVALIDATED_ENDPOINTS.remove(key, invalidation);
+            return false;
+        }
+        return invalidation.endpoint.equals(endpoint);
+    }
+
+    private static String rediscover(final String key, final Callable<String> discovery) throws Exception
+    {
+        String endpoint = discovery.call();
+        Invalidation invalidation = INVALIDATED_ENDPOINTS.get(key);
+        if (invalidation != null && invalidation.endpoint.equals(endpoint)) {
+            // The endpoint works again
+            INVALIDATED_ENDPOINTS.remove(key, invalidation);
+        }
+        return endpoint;
+    }
+
+    private static class Entry
+    {
+        private final FutureTask<String> lookup;
+        private final long expiresAt;
+
+        Entry(final Callable<String> discovery)
+        {
+            this.lookup = new FutureTask<>(discovery);
+            this.expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+
+    private static class Invalidation
+    {
+        private final String endpoint;
+        private final long expiresAt;
+
+        Invalidation(final String endpoint)
+        {
+            this.endpoint = endpoint;
+            this.expiresAt = System.currentTimeMillis() + TTL_MILLIS;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+}
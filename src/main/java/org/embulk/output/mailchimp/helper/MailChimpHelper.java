@@ -8,13 +8,22 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
 import org.embulk.output.mailchimp.model.AddressMergeFieldAttribute;
 import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
+import org.embulk.spi.type.BooleanType;
+import org.embulk.spi.type.DoubleType;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.LongType;
+import org.embulk.spi.type.TimestampType;
+import org.embulk.spi.type.Type;
 
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeSet;
@@ -28,6 +37,10 @@ import static java.util.stream.Collectors.toSet;
  */
 public final class MailChimpHelper
 {
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS, false);
+
     private MailChimpHelper()
     {
     }
@@ -43,6 +56,17 @@ public final class MailChimpHelper
         return email.replaceAll("(?<=.).(?=[^@]*?..@)", "*");
     }
 
+    /**
+     * Normalize an email as MailChimp compares them: without surrounding spaces, in lower case.
+     *
+     * @param email the email
+     * @return the normalized email
+     */
+    public static String normalizeEmail(final String email)
+    {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
     /**
      * From comma separated string list.
      *
@@ -63,11 +87,8 @@ public final class MailChimpHelper
      */
     public static JsonNode toJsonNode(final String string)
     {
-        final ObjectMapper mapper = new ObjectMapper()
-                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
-                .configure(JsonParser.Feature.ALLOW_UNQUOTED_CONTROL_CHARS, false);
         try {
-            return mapper.readTree(string);
+            return MAPPER.readTree(string);
         }
         catch (IOException e) {
             return JsonNodeFactory.instance.nullNode();
@@ -116,4 +137,54 @@ public final class MailChimpHelper
                         .collect(toSet()));
         return columns;
     }
+
+    /**
+     * Read the value of the column at the current row of the reader as text, the same way the member payload
+     * represents it. Null values are read as empty string.
+     *
+     * @param reader the page reader positioned on a row
+     * @param column the column
+     * @return the text value
+     */
+    @SuppressWarnings("deprecation")
+    public static String columnValueAsText(final PageReader reader, final Column column)
+    {
+        if (reader.isNull(column)) {
+            return "";
+        }
+
+        Type type = column.getType();
+        if (type instanceof BooleanType) {
+            return String.valueOf(reader.getBoolean(column));
+        }
+        else if (type instanceof LongType) {
+            return String.valueOf(reader.getLong(column));
+        }
+        else if (type instanceof DoubleType) {
+            return String.valueOf(reader.getDouble(column));
+        }
+        else if (type instanceof TimestampType) {
+            return reader.getTimestamp(column).toString();
+        }
+        else if (type instanceof JsonType) {
+            return reader.getJson(column).toJson();
+        }
+        return reader.getString(column);
+    }
+
+    /**
+     * Key identifying the account of the task by its auth method and credential.
+     *
+     * @param task the task
+     * @return the credential key
+     */
+    public static String credentialKey(final PluginTask task)
+    {
+        switch (task.getAuthMethod()) {
+            case OAUTH:
+                return task.getAuthMethod().getType() + ":" + task.getAccessToken().orElse("");
+            default:
+                return task.getAuthMethod().getType() + ":" + task.getApikey().orElse("");
+        }
+    }
 }
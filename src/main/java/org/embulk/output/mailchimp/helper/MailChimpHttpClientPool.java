@@ -0,0 +1,135 @@
+package org.embulk.output.mailchimp.helper;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps one started Jetty @{@link HttpClient} per credential, endpoint, timeout and `max_concurrent_requests`
+ * for the whole JVM, so that all tasks reuse the same keep-alive connections and TLS sessions to MailChimp
+ * instead of creating a client per request. Tasks configured differently get their own client.
+ * <p>
+ * Every request holds a permit of {@link MailChimpConcurrencyGovernor} until its exchange completes, whether
+ * it is sent in the background by `max_in_flight_requests` or not. So the client opens as many connections
+ * as `max_concurrent_requests` allows, and its thread pool grows with them.
+ * <p>
+ * Clients are reference-counted: every {@link #acquire(PluginTask)} must be paired with a
+ * {@link #release(PluginTask)}, and the client is stopped when the last task releases it. Both run under the
+ * lock of the class, so a client is never handed out while it is being stopped.
+ */
+public final class MailChimpHttpClientPool
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MailChimpHttpClientPool.class);
+    private static final int SELECTOR_THREADS = 1;
+    private static final int MIN_THREADS = 2;
+    // Threads besides the selector and the one completing each exchange, for Jetty's own tasks
+    private static final int SPARE_THREADS = 4;
+    private static final int MIN_MAX_THREADS = 8;
+    private static final Map<String, PooledClient> CLIENTS = new HashMap<>();
+
+    private MailChimpHttpClientPool()
+    {
+    }
+
+    /**
+     * Gets the started client shared by the task's credential, creating it if this is the first task.
+     *
+     * @param task the task
+     * @return the http client
+     */
+    public static synchronized HttpClient acquire(final PluginTask task)
+    {
+        String key = keyOf(task);
+        PooledClient pooled = CLIENTS.get(key);
+        if (pooled == null) {
+            pooled = new PooledClient(createAndStart(task));
+            CLIENTS.put(key, pooled);
+        }
+        pooled.references++;
+        return pooled.client;
+    }
+
+    /**
+     * Release the client acquired by the task, stopping it if no other task uses it.
+     *
+     * @param task the task
+     */
+    public static synchronized void release(final PluginTask task)
+    {
+        String key = keyOf(task);
+        PooledClient pooled = CLIENTS.get(key);
+        if (pooled == null) {
+            return;
+        }
+        if (--pooled.references > 0) {
+            return;
+        }
+        CLIENTS.remove(key);
+        try {
+            pooled.client.stop();
+        }
+        catch (Exception e) {
+            LOG.warn("Failed to stop http client: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the number of tasks using the client of the task's settings.
+     *
+     * @param task the task
+     * @return the number of references, 0 if no client is started
+     */
+    public static synchronized int getReferences(final PluginTask task)
+    {
+        PooledClient pooled = CLIENTS.get(keyOf(task));
+        return pooled == null ? 0 : pooled.references;
+    }
+
+    private static String keyOf(final PluginTask task)
+    {
+        return MailChimpHelper.credentialKey(task) + ":" + task.getEndpoint().orElse("") + ":" + task.getTimeoutMillis()
+                + ":" + task.getMaxConcurrentRequests();
+    }
+
+    private static HttpClient createAndStart(final PluginTask task)
+    {
+        int maxConnections = task.getMaxConcurrentRequests();
+        int maxThreads = Math.max(MIN_MAX_THREADS, SELECTOR_THREADS + maxConnections + SPARE_THREADS);
+        QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, MIN_THREADS);
+        threadPool.setName("embulk-output-mailchimp-http");
+        threadPool.setDaemon(true);
+
+        HttpClient client = new HttpClient(new HttpClientTransportOverHTTP(SELECTOR_THREADS), new SslContextFactory.Client());
+        client.setExecutor(threadPool);
+        client.setConnectTimeout(task.getTimeoutMillis());
+        client.setIdleTimeout(task.getTimeoutMillis());
+        client.setMaxConnectionsPerDestination(maxConnections);
+        try {
+            client.start();
+        }
+        catch (Exception e) {
+            throw new RuntimeException("Failed to start http client", e);
+        }
+        LOG.info("Started shared http client for MailChimp with {} connection(s) and {} thread(s) at most",
+                 maxConnections, maxThreads);
+        return client;
+    }
+
+    private static class PooledClient
+    {
+        private final HttpClient client;
+        private int references;
+
+        PooledClient(final HttpClient client)
+        {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.embulk.output.mailchimp.helper;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
+import org.embulk.output.mailchimp.model.Interest;
+import org.embulk.output.mailchimp.model.MergeField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the merge fields and interest categories of lists in a local directory between runs, one file per
+ * data center and list id.
+ * <p>
+ * An entry is used until it expires, unless the number of merge fields of the list changed, which the list
+ * request of every run tells for free. The number of interests of every category is kept to log the changes
+ * found when the entry is refreshed. Expired or unreadable entries are deleted once read. A refreshed
+ * entry is written to a temporary file first and moved over the old one, so that runs reading it at the same
+ * time never see a partial file. The cache is best effort: failures to read or write it are warned and the
+ * metadata is fetched from MailChimp instead.
+ */
+public class MailChimpMetadataCache
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MailChimpMetadataCache.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path directory;
+    private final long ttlMillis;
+
+    /**
+     * Instantiates a new Mail chimp metadata cache.
+     *
+     * @param directory the directory of the cache files, created if missing
+     * @param ttlMillis how long entries are used
+     */
+    public MailChimpMetadataCache(final Path directory, final long ttlMillis)
+    {
+        this.directory = directory;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Gets the cache of the task, if `metadata_cache_dir` is set.
+     *
+     * @param task the task
+     * @return the cache
+     */
+    public static Optional<MailChimpMetadataCache> of(final PluginTask task)
+    {
+        if (!task.getMetadataCacheDir().isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.of(new MailChimpMetadataCache(Paths.get(task.getMetadataCacheDir().get()),
+                                                      TimeUnit.SECONDS.toMillis(task.getMetadataCacheTtlSeconds())));
+    }
+
+    /**
+     * Read the entry of a list, if it is cached and not expired.
+     *
+     * @param endpoint the API endpoint of the list's data center
+     * @param listId   the list id
+     * @return the entry
+     */
+    public Optional<Entry> read(final String endpoint, final String listId)
+    {
+        Path file = fileOf(endpoint, listId);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        try {
+            Entry entry = MAPPER.readValue(file.toFile(), Entry.class);
+            if (System.currentTimeMillis() - entry.createdAtMillis > ttlMillis) {
+                LOG.info("Cached metadata of list '{}' has expired", listId);
+                delete(file);
+                return Optional.empty();
+            }
+            return Optional.of(entry);
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to read cached metadata from {}", file, e);
+            delete(file);
+            return Optional.empty();
+        }
+    }
+
+
+    /**
+     * Replace the entry of a list.
+     *
+     * @param endpoint the API endpoint of the list's data center
+     * @param listId   the list id
+     * @param entry    the entry
+     */
+    public void write(final String endpoint, final String listId, final Entry entry)
+    {
+        Path file = fileOf(endpoint, listId);
+        Path temporaryFile = null;
+        try {
+            Files.createDirectories(directory);
+            temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            MAPPER.writeValue(temporaryFile.toFile(), entry);
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to write cached metadata to {}", file, e);
+            if (temporaryFile != null) {
+                try {
+                    Files.deleteIfExists(temporaryFile);
+                }
+                catch (IOException ignored) {
+                    // Left for the next cleanup of the directory
+                }
+            }
+        }
+    }
+
+    Path fileOf(final String endpoint, final String listId)
+    {
+        URI uri = URI.create(endpoint);
+        String dataCenter = uri.getPort() < 0 ? uri.getHost() : uri.getHost() + "_" + uri.getPort();
+        return directory.resolve(sanitize(dataCenter) + "-" + sanitize(listId) + ".json");
+    }
+
+    private static void delete(final Path file)
+    {
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e) {
+            LOG.warn("Unable to delete cached metadata {}", file, e);
+        }
+    }
+
+    private static String sanitize(final String name)
+    {
+        return name.replaceAll("[^A-Za-z0-9._]", "_");
+    }
+
+    public static class Entry
+    {
+        @JsonProperty("created_at_millis")
+        private long createdAtMillis;
+
+        @JsonProperty("merge_field_count")
+        private int mergeFieldCount;
+
+        @JsonProperty("merge_fields_by_tag")
+        private Map<String, MergeField> mergeFieldsByTag;
+
+        @JsonProperty("interests_by_category")
+        private Map<String, Map<String, Interest>> interestsByCategory;
+
+        @JsonProperty("interest_count_by_category")
+        private Map<String, Integer> interestCountByCategory;
+
+        public Entry()
+        {
+        }
+
+        /**
+         * Instantiates a new entry created now.
+         *
+         * @param mergeFieldCount     the number of merge fields of the list
+         * @param mergeFieldsByTag    the merge fields by lower case tag
+         * @param interestsByCategory the interests by category
+         */
+        public Entry(final int mergeFieldCount,
+                     final Map<String, MergeField> mergeFieldsByTag,
+                     final Map<String, Map<String, Interest>> interestsByCategory)
+        {
+            this.createdAtMillis = System.currentTimeMillis();
+            this.mergeFieldCount = mergeFieldCount;
+            this.mergeFieldsByTag = mergeFieldsByTag;
+            this.interestsByCategory = interestsByCategory;
+            this.interestCountByCategory = new HashMap<>();
+            for (Map.Entry<String, Map<String, Interest>> category : interestsByCategory.entrySet()) {
+                interestCountByCategory.put(category.getKey(), category.getValue().size());
+            }
+        }
+
+        public int getMergeFieldCount()
+        {
+            return mergeFieldCount;
+        }
+
+        public Map<String, MergeField> getMergeFieldsByTag()
+        {
+            return mergeFieldsByTag;
+        }
+
+        public Map<String, Map<String, Interest>> getInterestsByCategory()
+        {
+            return interestsByCategory;
+        }
+
+        /**
+         * Gets the number of interests of every category when the entry was created, missing in entries
+         * of earlier versions.
+         *
+         * @return the number of interests by category
+         */
+        public Map<String, Integer> getInterestCountByCategory()
+        {
+            return interestCountByCategory;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.embulk.output.mailchimp.helper;
+
+import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the rate of requests to MailChimp API. A permit is taken when a request starts,
+ * so the time spent waiting for the response counts towards the interval between requests.
+ * <p>
+ * With `max_requests_per_second`, the bucket of a credential is shared by all tasks of the JVM with the same
+ * rate, so that the configured rate holds for the job rather than for every task. The rate derived from
+ * `sleep_between_requests_millis` applies to every task on its own, as the sleep between batches did.
+ * <p>
+ * The rate is halved every time MailChimp answers 429, and requests are paused for the duration of its
+ * `Retry-After` header. It then recovers gradually towards the configured rate on successful requests.
+ */
+public class MailChimpRateLimiter
+{
+    private static final Logger LOG = LoggerFactory.getLogger(MailChimpRateLimiter.class);
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+    private static final double MIN_RATE_FRACTION = 1.0 / 16;
+    private static final double RECOVERY_FRACTION = 1.0 / 20;
+    private static final Map<String, MailChimpRateLimiter> LIMITERS = new HashMap<>();
+
+    private final double maxPermitsPerSecond;
+    private final double burst;
+    private double permitsPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+    private long pausedUntilNanos;
+    private int references;
+
+    /**
+     * Instantiates a new Mail chimp rate limiter.
+     *
+     * @param permitsPerSecond the requests per second, or infinity for no limit
+     * @param burst            the requests which can start at once after being idle
+     */
+    public MailChimpRateLimiter(final double permitsPerSecond, final int burst)
+    {
+        this.maxPermitsPerSecond = permitsPerSecond;
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+        this.pausedUntilNanos = lastRefillNanos;
+    }
+
+    /**
+     * Gets the limiter shared by the task's credential, creating it for the first task. Without
+     * `max_requests_per_second`, the rate is derived from `sleep_between_requests_millis` and the limiter
+     * belongs to the task alone. Every call must be paired with a {@link #release(PluginTask)}.
+     *
+     * @param task the task
+     * @return the rate limiter
+     */
+    public static synchronized MailChimpRateLimiter of(final PluginTask task)
+    {
+        if (!task.getMaxRequestsPerSecond().isPresent()) {
+            return new MailChimpRateLimiter(permitsPerSecondOf(task), task.getRequestBurst());
+        }
+        String key = keyOf(task);
+        MailChimpRateLimiter limiter = LIMITERS.get(key);
+        if (limiter == null) {
+            limiter = new MailChimpRateLimiter(permitsPerSecondOf(task), task.getRequestBurst());
+            LIMITERS.put(key, limiter);
+        }
+        limiter.references++;
+        return limiter;
+    }
+
+    /**
+     * Release the limiter of the task, dropping it if no other task uses it.
+     *
+     * @param task the task
+     */
+    public static synchronized void release(final PluginTask task)
+    {
+        if (!task.getMaxRequestsPerSecond().isPresent()) {
+            return;
+        }
+        String key = keyOf(task);
+        MailChimpRateLimiter limiter = LIMITERS.get(key);
+        if (limiter != null && --limiter.references <= 0) {
+            LIMITERS.remove(key);
+        }
+    }
+
+    private static String keyOf(final PluginTask task)
+    {
+        return MailChimpHelper.credentialKey(task) + ":" + permitsPerSecondOf(task) + ":" + task.getRequestBurst();
+    }
+
+    private static double permitsPerSecondOf(final PluginTask task)
+    {
+        double permitsPerSecond;
+        if (task.getMaxRequestsPerSecond().isPresent()) {
+            permitsPerSecond = task.getMaxRequestsPerSecond().get();
+        }
+        else if (task.getSleepBetweenRequestsMillis() > 0) {
+            permitsPerSecond = 1000.0 / task.getSleepBetweenRequestsMillis();
+        }
+        else {
+            permitsPerSecond = Double.POSITIVE_INFINITY;
+        }
+        return permitsPerSecond;
+    }
+
+    /**
+     * Wait until a request is allowed to start.
+     */
+    public void acquire()
+    {
+        long waitNanos = reserve();
+        if (waitNanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Failed to sleep: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Slow down after MailChimp rejected a request for exceeding the rate limit.
+     *
+     * @param retryAfterMillis how long MailChimp asked to wait before the next request
+     */
+    public synchronized void onThrottled(final long retryAfterMillis)
+    {
+        long now = System.nanoTime();
+        if (!Double.isInfinite(maxPermitsPerSecond)) {
+            permitsPerSecond = Math.max(maxPermitsPerSecond * MIN_RATE_FRACTION, permitsPerSecond / 2);
+        }
+        pausedUntilNanos = Math.max(pausedUntilNanos, now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+        tokens = Math.min(tokens, 0);
+        lastRefillNanos = pausedUntilNanos;
+        LOG.warn("Rate limited by MailChimp, pausing requests for {}ms", retryAfterMillis);
+    }
+
+    /**
+     * Recover the rate after a successful request.
+     */
+    public synchronized void onSuccess()
+    {
+        if (permitsPerSecond < maxPermitsPerSecond) {
+            permitsPerSecond = Math.min(maxPermitsPerSecond, permitsPerSecond + maxPermitsPerSecond * RECOVERY_FRACTION);
+        }
+    }
+
+    /**
+     * Gets the current rate.
+     *
+     * @return the requests per second
+     */
+    public synchronized double getPermitsPerSecond()
+    {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Parse a `Retry-After` header, which is either seconds or an HTTP date.
+     *
+     * @param header the header value, may be null
+     * @return the milliseconds to wait, or a default when the header is absent or invalid
+     */
+    public static long parseRetryAfterMillis(final String header)
+    {
+        if (header == null || header.trim().isEmpty()) {
+            return DEFAULT_RETRY_AFTER_MILLIS;
+        }
+        String value = header.trim();
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        }
+        catch (NumberFormatException e) {
+            // Fall through to HTTP date
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+        }
+        catch (DateTimeParseException e) {
+            return DEFAULT_RETRY_AFTER_MILLIS;
+        }
+    }
+
+    private synchronized long reserve()
+    {
+        long now = System.nanoTime();
+        if (Double.isInfinite(permitsPerSecond)) {
+            return pausedUntilNanos - now;
+        }
+        if (now > lastRefillNanos) {
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) / 1e9 * permitsPerSecond);
+            lastRefillNanos = now;
+        }
+        tokens -= 1;
+        // Tokens don't refill while paused, so the debt is paid off from the end of the pause
+        long waitNanos = Math.max(0, lastRefillNanos - now);
+        if (tokens < 0) {
+            waitNanos += (long) (-tokens / permitsPerSecond * 1e9);
+        }
+        return Math.max(waitNanos, pausedUntilNanos - now);
+    }
+}
@@ -0,0 +1,175 @@
+package org.embulk.output.mailchimp.helper;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.eclipse.jetty.client.HttpResponseException;
+import org.embulk.config.ConfigException;
+import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+import static org.eclipse.jetty.http.HttpHeader.RETRY_AFTER;
+
+/**
+ * Decides whether a failed request is retried and how long to wait before.
+ * <p>
+ * Server errors, timeouts and connection failures back off with decorrelated jitter, so that tasks failing
+ * at the same moment don't retry in lockstep. Throttled requests (429) wait for the `Retry-After` of MailChimp
+ * plus a random spread instead.
+ * Reference: https://aws.amazon.com/blogs/architecture/exponential-backoff-and-jitter/
+ */
+public class MailChimpRetryPolicy
+{
+    private final int retryLimit;
+    private final long initialWaitMillis;
+    private final long maxWaitMillis;
+
+    /**
+     * Instantiates a new Mail chimp retry policy.
+     *
+     * @param retryLimit        the max number of retries of a request
+     * @param initialWaitMillis the shortest wait before a retry
+     * @param maxWaitMillis     the longest backoff before a retry
+     */
+    public MailChimpRetryPolicy(final int retryLimit, final long initialWaitMillis, final long maxWaitMillis)
+    {
+        this.retryLimit = retryLimit;
+        this.initialWaitMillis = initialWaitMillis;
+        this.maxWaitMillis = Math.max(initialWaitMillis, maxWaitMillis);
+    }
+
+    /**
+     * Create the policy of the task from `retry_limit`, `retry_initial_wait_msec` and `max_retry_wait_msec`.
+     *
+     * @param task the task
+     * @return the retry policy
+     */
+    public static MailChimpRetryPolicy of(final PluginTask task)
+    {
+        return new MailChimpRetryPolicy(task.getRetryLimit(), task.getRetryInitialWaitMSec(), task.getMaxRetryWaitMSec());
+    }
+
+    public int getRetryLimit()
+    {
+        return retryLimit;
+    }
+
+    public long getInitialWaitMillis()
+    {
+        return initialWaitMillis;
+    }
+
+    /**
+     * Whether a response status is worth retrying: rate limit exceeded, or a server error other than 500,
+     * which MailChimp answers for requests that would fail again.
+     *
+     * @param status the status
+     * @return true to retry
+     */
+    public boolean isRetryableStatus(final int status)
+    {
+        return status == 429 || (status != 500 && status / 100 != 4);
+    }
+
+    /**
+     * Whether a failure is worth retrying.
+     *
+     * @param exception the failure of a request
+     * @return true to retry
+     */
+    public boolean isRetryable(final Throwable exception)
+    {
+        if (exception instanceof HttpResponseException) {
+            return isRetryableStatus(((HttpResponseException) exception).getResponse().getStatus());
+        }
+        if (exception instanceof JsonProcessingException) {
+            // A response which can't be read, or a payload which can't be written, fails again
+            return false;
+        }
+        if (exception instanceof TimeoutException || exception instanceof IOException) {
+            return true;
+        }
+        // The original exception tells if it's retryable, i.e. server not found or a checked exception given up on
+        if ((exception instanceof ExecutionException || exception instanceof ConfigException
+                || exception.getClass() == RuntimeException.class) && exception.getCause() != null) {
+            return isRetryable(exception.getCause());
+        }
+        return false;
+    }
+
+    /**
+     * Whether a failure is MailChimp throttling requests.
+     *
+     * @param exception the failure of a request
+     * @return true if rate limit exceeded
+     */
+    public boolean isThrottled(final Throwable exception)
+    {
+        return exception instanceof HttpResponseException
+                && ((HttpResponseException) exception).getResponse().getStatus() == 429;
+    }
+
+    /**
+     * Gets the wait before retrying a failure, as {@link #throttledWaitMillis(String, long)} for throttled
+     * requests or {@link #backoffMillis(long)} otherwise.
+     *
+     * @param exception          the failure of a request
+     * @param previousWaitMillis the previous wait, or the initial wait for the first retry
+     * @return the wait in milliseconds
+     */
+    public long waitMillis(final Throwable exception, final long previousWaitMillis)
+    {
+        if (isThrottled(exception)) {
+            return throttledWaitMillis(retryAfterOf(exception), previousWaitMillis);
+        }
+        return backoffMillis(previousWaitMillis);
+    }
+
+    /**
+     * Gets the `Retry-After` header of a throttled request.
+     *
+     * @param exception the failure of a request
+     * @return the header, or null if absent or not throttled
+     */
+    public String retryAfterOf(final Throwable exception)
+    {
+        if (!isThrottled(exception)) {
+            return null;
+        }
+        return ((HttpResponseException) exception).getResponse().getHeaders().get(RETRY_AFTER);
+    }
+
+    /**
+     * Gets the backoff after a server error, randomly between the initial wait and three times the previous
+     * wait, capped by the max wait.
+     *
+     * @param previousWaitMillis the previous wait, or the initial wait for the first retry
+     * @return the wait in milliseconds
+     */
+    public long backoffMillis(final long previousWaitMillis)
+    {
+        long upper = Math.min(maxWaitMillis, previousWaitMillis * 3);
+        if (upper <= initialWaitMillis) {
+            return initialWaitMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(initialWaitMillis, upper + 1);
+    }
+
+    /**
+     * Gets the wait after a throttled request. `Retry-After` is honored even beyond the max wait, and spread
+     * by up to the initial wait. Without the header, it backs off as for server errors.
+     *
+     * @param retryAfter         the `Retry-After` header, may be null
+     * @param previousWaitMillis the previous wait, or the initial wait for the first retry
+     * @return the wait in milliseconds
+     */
+    public long throttledWaitMillis(final String retryAfter, final long previousWaitMillis)
+    {
+        if (retryAfter == null) {
+            return backoffMillis(previousWaitMillis);
+        }
+        return MailChimpRateLimiter.parseRetryAfterMillis(retryAfter) + ThreadLocalRandom.current().nextLong(initialWaitMillis + 1);
+    }
+}
@@ -2,28 +2,30 @@ package org.embulk.output.mailchimp.helper;
 
 import com.fasterxml.jackson.core.Base64Variants;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.HttpResponseException;
+import org.eclipse.jetty.client.api.ContentProvider;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
-import org.eclipse.jetty.client.util.StringContentProvider;
 import org.embulk.base.restclient.jackson.StringJsonParser;
 import org.embulk.config.ConfigException;
 import org.embulk.output.mailchimp.MailChimpOutputPluginDelegate.PluginTask;
-import org.embulk.util.retryhelper.jetty94.DefaultJetty94ClientCreator;
-import org.embulk.util.retryhelper.jetty94.Jetty94RetryHelper;
-import org.embulk.util.retryhelper.jetty94.Jetty94SingleRequester;
+import org.embulk.util.retryhelper.jetty94.Jetty94ResponseReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.InputStream;
+import java.net.UnknownHostException;
 import java.text.MessageFormat;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import static org.eclipse.jetty.http.HttpHeader.AUTHORIZATION;
+import static org.eclipse.jetty.http.HttpHeader.CONTENT_ENCODING;
 import static org.eclipse.jetty.http.HttpMethod.GET;
 import static org.eclipse.jetty.http.HttpMethod.POST;
 import static org.embulk.output.mailchimp.model.AuthMethod.API_KEY;
@@ -34,83 +36,286 @@ public class MailChimpRetryable implements AutoCloseable
     private static final Logger LOG = LoggerFactory.getLogger(MailChimpRetryable.class);
     private static final int READER_TIMEOUT_MILLIS = 300000;
     private static final String API_VERSION = "3.0";
-    private final Jetty94RetryHelper retryHelper;
+    // Time spent in exchanges with MailChimp by each thread, without waits for permits and retries
+    private static final ThreadLocal<long[]> REQUEST_MILLIS = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[1];
+        }
+    };
+    private final MailChimpRetryPolicy retryPolicy;
     private final PluginTask pluginTask;
-    private static TokenHolder tokenHolder;
+    private final HttpClient httpClient;
+    private final MailChimpRateLimiter rateLimiter;
+    private final MailChimpConcurrencyGovernor governor;
+    private boolean closed;
     protected StringJsonParser jsonParser = new StringJsonParser();
     private String authorizationHeader;
 
+    /**
+     * Instantiates a new Mail chimp retryable on the http client shared by the task's credential.
+     * The client is released by {@link #close()}.
+     *
+     * @param pluginTask the task
+     */
     public MailChimpRetryable(final PluginTask pluginTask)
     {
-        this.retryHelper = new Jetty94RetryHelper(pluginTask.getRetryLimit(),
-                                                  pluginTask.getRetryInitialWaitMSec(),
-                                                  pluginTask.getMaxRetryWaitMSec(),
-                                                  new DefaultJetty94ClientCreator(pluginTask.getTimeoutMillis(),
-                                                                                  pluginTask.getTimeoutMillis()));
+        this.httpClient = MailChimpHttpClientPool.acquire(pluginTask);
+        this.retryPolicy = MailChimpRetryPolicy.of(pluginTask);
         this.pluginTask = pluginTask;
+        this.rateLimiter = MailChimpRateLimiter.of(pluginTask);
+        this.governor = MailChimpConcurrencyGovernor.of(pluginTask);
         authorizationHeader = buildAuthorizationHeader(pluginTask);
     }
 
     public String get(final String path)
     {
-        return sendRequest(path, null);
+        return sendRequest(path, null, null, new PatchedStringJetty94ResponseEntityReader(READER_TIMEOUT_MILLIS),
+                           retryPolicy.getRetryLimit());
+    }
+
+    public String post(final String path, final ContentProvider contentProvider)
+    {
+        return sendRequest(path, contentProvider, null,
+                           new PatchedStringJetty94ResponseEntityReader(READER_TIMEOUT_MILLIS), retryPolicy.getRetryLimit());
+    }
+
+    /**
+     * Post an encoded body once, without waiting to retry it. The caller decides whether and when to retry
+     * a failure with {@link #getRetryPolicy()}. Throttling, the circuit breaker and endpoint invalidation
+     * apply as for other requests.
+     *
+     * @param path            the path
+     * @param contentProvider the body
+     * @param contentEncoding the encoding of the body, i.e. `gzip`, or null if not encoded
+     * @param parser          the parser of the response
+     * @param <T>             the type of the parsed response
+     * @return the parsed response
+     */
+    public <T> T postOnce(final String path, final ContentProvider contentProvider, final String contentEncoding,
+                          final ResponseParser<T> parser)
+    {
+        return sendRequest(path, contentProvider, contentEncoding,
+                           new ParsingJetty94ResponseReader<>(READER_TIMEOUT_MILLIS, parser), 0);
     }
 
-    public String post(final String path, String contentType, String body)
+    public MailChimpRetryPolicy getRetryPolicy()
     {
-        return sendRequest(path, new StringContentProvider(contentType, body, Charsets.UTF_8));
+        return retryPolicy;
     }
 
-    private String sendRequest(final String path, final StringContentProvider contentProvider)
+    /**
+     * Gets the API endpoint of the account's data center, resolving it if needed.
+     *
+     * @return the endpoint
+     */
+    public String getEndpoint()
+    {
+        return resolveEndpoint();
+    }
+
+    /**
+     * Download a file outside of MailChimp API, such as the result archive of batch operations.
+     * No authorization is sent, and the caller has to close the returned stream.
+     *
+     * @param url the absolute url
+     * @return the content stream
+     */
+    public InputStream download(final String url)
+    {
+        return requestWithRetry(new InputStreamJetty94ResponseReader(READER_TIMEOUT_MILLIS),
+                                () -> httpClient.newRequest(url).method(GET), retryPolicy.getRetryLimit(), false);
+    }
+
+    private <T> T sendRequest(final String path, final ContentProvider contentProvider, final String contentEncoding,
+                              final Jetty94ResponseReader<T> responseReader, final int retryLimit)
     {
         try {
-            return retryHelper.requestWithRetry(
-                    new PatchedStringJetty94ResponseEntityReader(READER_TIMEOUT_MILLIS),
-                    new Jetty94SingleRequester()
-                    {
-                        @Override
-                        public void requestOnce(HttpClient client, Response.Listener responseListener)
-                        {
-                            createTokenHolder(client);
-                            Request request = client.newRequest(tokenHolder.getEndpoint() + path)
-                                    .header(AUTHORIZATION, authorizationHeader)
-                                    .method(GET);
-                            if (contentProvider != null) {
-                                request = request.method(POST).content(contentProvider);
-                            }
-                            request.send(responseListener);
-                        }
-
-                        @Override
-                        protected boolean isResponseStatusToRetry(Response response)
-                        {
-                            // Retry if it's a server or rate limit exceeded error
-                            return (response.getStatus() != 500 && response.getStatus() / 100 != 4) || response.getStatus() == 429;
-                        }
-
-                        @Override
-                        protected boolean isExceptionToRetry(Exception exception)
-                        {
-                            // This check is to make sure if the original exception is retryable, i.e.
-                            // server not found, internal server error...
-                            if (exception instanceof ConfigException || exception instanceof ExecutionException) {
-                                return toRetry((Exception) exception.getCause());
-                            }
-                            return exception instanceof TimeoutException || super.isExceptionToRetry(exception);
-                        }
-                    });
+            return requestWithRetry(responseReader, () -> {
+                Request request = httpClient.newRequest(resolveEndpoint() + path)
+                        .header(AUTHORIZATION, authorizationHeader)
+                        .method(GET);
+                if (contentProvider != null) {
+                    request = request.method(POST).content(contentProvider);
+                    if (contentEncoding != null) {
+                        request = request.header(CONTENT_ENCODING, contentEncoding);
+                    }
+                }
+                return request;
+            }, retryLimit, contentProvider != null);
         }
         catch (HttpResponseException ex) {
-            LOG.error("Unexpected response from request to {}", path, ex);
+            // The caller reports it: a batch being split expects refusals, and only reports the records refused
+            LOG.debug("Response {} from request to {}", ex.getResponse().getStatus(), path);
             throw ex;
         }
     }
 
+    /**
+     * Send a request until it succeeds, it fails for a reason not worth retrying, or the retries run out.
+     * The request is built again for every attempt, as the endpoint may have been invalidated.
+     * Only requests posting data to MailChimp take a permit of the rate limit, as the fixed sleep did
+     * before: reading the list's metadata and the state of batches isn't throttled.
+     */
+    private <T> T requestWithRetry(final Jetty94ResponseReader<T> responseReader, final Supplier<Request> requestBuilder,
+                                   final int retryLimit, final boolean rateLimited)
+    {
+        long waitMillis = retryPolicy.getInitialWaitMillis();
+        for (int retries = 0; ; retries++) {
+            Request request = null;
+            MailChimpCircuitBreaker circuitBreaker = null;
+            try {
+                request = requestBuilder.get();
+                circuitBreaker = MailChimpCircuitBreaker.of(request.getScheme() + "://" + request.getHost() + ":" + request.getPort());
+                circuitBreaker.awaitClosed();
+                if (rateLimited) {
+                    rateLimiter.acquire();
+                }
+                T content = requestOnce(request, responseReader);
+                circuitBreaker.onSuccess();
+                if (rateLimited) {
+                    rateLimiter.onSuccess();
+                }
+                return content;
+            }
+            catch (InterruptedException e) {
+                if (circuitBreaker != null) {
+                    circuitBreaker.onCancelled();
+                }
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (Exception e) {
+                if (isDnsFailure(e) || statusOf(e) == 401) {
+                    // The credential may have moved to another data center
+                    invalidateEndpoint();
+                }
+                boolean throttled = retryPolicy.isThrottled(e);
+                if (throttled) {
+                    rateLimiter.onThrottled(MailChimpRateLimiter.parseRetryAfterMillis(retryPolicy.retryAfterOf(e)));
+                }
+                boolean retryable = retryPolicy.isRetryable(e);
+                if (circuitBreaker != null) {
+                    if (retryable && !throttled) {
+                        circuitBreaker.onFailure();
+                    }
+                    else if (statusOf(e) > 0) {
+                        // MailChimp answered, i.e. throttled or rejected the request
+                        circuitBreaker.onSuccess();
+                    }
+                    else {
+                        circuitBreaker.onCancelled();
+                    }
+                }
+                if (!retryable || retries >= retryLimit) {
+                    if (retryable && retries > 0) {
+                        LOG.warn("Giving up request to {} after {} retries", request != null ? request.getPath() : null, retries);
+                    }
+                    Throwables.propagateIfPossible(e);
+                    throw new RuntimeException(e);
+                }
+
+                waitMillis = retryPolicy.waitMillis(e, waitMillis);
+                LOG.warn("Retrying request to {} in {} ms ({}/{}) after: {}", request != null ? request.getPath() : null,
+                         waitMillis, retries + 1, retryLimit, e.getMessage());
+                try {
+                    Thread.sleep(waitMillis);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(ie);
+                }
+            }
+        }
+    }
+
+    private <T> T requestOnce(final Request request, final Jetty94ResponseReader<T> responseReader) throws Exception
+    {
+        // Hold a permit of the credential until the exchange completes
+        governor.acquire();
+        long startTime = System.currentTimeMillis();
+        try {
+            return exchange(request, responseReader);
+        }
+        finally {
+            REQUEST_MILLIS.get()[0] += System.currentTimeMillis() - startTime;
+        }
+    }
+
+    private <T> T exchange(final Request request, final Jetty94ResponseReader<T> responseReader) throws Exception
+    {
+        final AtomicBoolean released = new AtomicBoolean();
+        request.onComplete(result -> {
+            if (released.compareAndSet(false, true)) {
+                governor.releasePermit();
+            }
+        });
+        try {
+            request.send(responseReader.getListener());
+        }
+        catch (RuntimeException e) {
+            if (released.compareAndSet(false, true)) {
+                governor.releasePermit();
+            }
+            throw e;
+        }
+
+        Response response;
+        try {
+            response = responseReader.getResponse();
+        }
+        catch (TimeoutException e) {
+            request.abort(e);
+            throw e;
+        }
+        if (response.getStatus() / 100 != 2) {
+            String content = responseReader.readResponseContentInString();
+            throw new HttpResponseException(String.format("Response not 2xx: %d %s %s",
+                                                          response.getStatus(), response.getReason(), content),
+                                            response);
+        }
+        return responseReader.readResponseContent();
+    }
+
+    private static int statusOf(final Exception exception)
+    {
+        return exception instanceof HttpResponseException ? ((HttpResponseException) exception).getResponse().getStatus() : -1;
+    }
+
+    /**
+     * Gets the total time the current thread spent in exchanges with MailChimp, from sending a request to
+     * reading its response. Waits for the rate limit, the concurrency permits and retries are not included.
+     *
+     * @return the time in milliseconds
+     */
+    public static long getThreadRequestMillis()
+    {
+        return REQUEST_MILLIS.get()[0];
+    }
+
+    /**
+     * Gets the total time requests of this instance waited for a permit of the credential.
+     *
+     * @return the wait time in milliseconds
+     */
+    public long getConcurrencyWaitMillis()
+    {
+        return governor.getWaitMillis();
+    }
+
+    /**
+     * Release the shared http client, rate limiter and concurrency permits.
+     */
     @Override
     public void close()
     {
-        if (retryHelper != null) {
-            retryHelper.close();
+        if (!closed) {
+            closed = true;
+            MailChimpRateLimiter.release(pluginTask);
+            MailChimpConcurrencyGovernor.release(pluginTask);
+            MailChimpHttpClientPool.release(pluginTask);
         }
     }
 
@@ -130,28 +335,33 @@ public class MailChimpRetryable implements AutoCloseable
         }
     }
 
-    private TokenHolder createTokenHolder(final HttpClient client)
+    private String resolveEndpoint()
     {
-        if (tokenHolder != null) {
-            return tokenHolder;
+        // Explicit endpoint, i.e. a proxy or a stand-in server, doesn't need the data center
+        if (pluginTask.getEndpoint().isPresent()) {
+            return pluginTask.getEndpoint().get();
         }
+        return MailChimpEndpointCache.get(MailChimpHelper.credentialKey(pluginTask),
+                                          pluginTask.getResolvedEndpoint(),
+                                          this::discoverEndpoint);
+    }
 
-        LOG.info("Create new token holder and extract data center");
+    private String discoverEndpoint()
+    {
+        LOG.info("Extract data center of the account");
 
         if (pluginTask.getAuthMethod() == OAUTH) {
             try {
                 // Extract data center from meta data URL
-                ContentResponse contentResponse = client.newRequest("https://login.mailchimp.com/oauth2/metadata")
+                ContentResponse contentResponse = httpClient.newRequest("https://login.mailchimp.com/oauth2/metadata")
                         .method(GET)
                         .header("Authorization", authorizationHeader)
                         .send();
 
                 if (contentResponse.getStatus() == 200) {
                     ObjectNode objectNode = jsonParser.parseJsonObject(contentResponse.getContentAsString());
-                    String endpoint = MessageFormat.format(Joiner.on("/").join("https://{0}.api.mailchimp.com", API_VERSION),
-                                                           objectNode.get("dc").asText());
-                    tokenHolder = new TokenHolder(pluginTask.getAccessToken().orElse(null), null, endpoint);
-                    return tokenHolder;
+                    return MessageFormat.format(Joiner.on("/").join("https://{0}.api.mailchimp.com", API_VERSION),
+                                                objectNode.get("dc").asText());
                 }
 
                 String message = String.format("%s %d %s",
@@ -170,15 +380,14 @@ public class MailChimpRetryable implements AutoCloseable
                 String domain = pluginTask.getApikey().get().split("-")[1];
                 String endpoint = MessageFormat.format(Joiner.on("/").join("https://{0}.api.mailchimp.com", API_VERSION),
                                                        domain);
-                ContentResponse contentResponse = client.newRequest(endpoint + "/")
+                ContentResponse contentResponse = httpClient.newRequest(endpoint + "/")
                         .method(GET)
                         .header("Authorization", "Basic " + Base64Variants.MIME_NO_LINEFEEDS
                                 .encode(("apikey" + ":" + pluginTask.getApikey().get()).getBytes()))
                         .send();
 
                 if (contentResponse.getStatus() == 200) {
-                    tokenHolder = new TokenHolder(null, pluginTask.getApikey().orElse(null), endpoint);
-                    return tokenHolder;
+                    return endpoint;
                 }
 
                 String message = String.format("%s %d %s",
@@ -194,33 +403,21 @@ public class MailChimpRetryable implements AutoCloseable
 
         throw new ConfigException("Not supported auth method");
     }
-}
 
-class TokenHolder
-{
-    private String accessToken;
-    private String apiKey;
-    private String endpoint;
-
-    public TokenHolder(final String accessToken, final String apiKey, final String endpoint)
-    {
-        this.accessToken = accessToken;
-        this.apiKey = apiKey;
-        this.endpoint = endpoint;
-    }
-
-    public String getAccessToken()
+    private void invalidateEndpoint()
     {
-        return accessToken;
-    }
-
-    public String getApiKey()
-    {
-        return apiKey;
+        if (!pluginTask.getEndpoint().isPresent()) {
+            MailChimpEndpointCache.invalidate(MailChimpHelper.credentialKey(pluginTask));
+        }
     }
 
-    public String getEndpoint()
+    private static boolean isDnsFailure(final Throwable exception)
     {
-        return endpoint;
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof UnknownHostException) {
+                return true;
+            }
+        }
+        return false;
     }
 }
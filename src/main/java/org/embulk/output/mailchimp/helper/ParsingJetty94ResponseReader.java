@@ -0,0 +1,64 @@
+package org.embulk.output.mailchimp.helper;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.embulk.util.retryhelper.jetty94.Jetty94ResponseReader;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Like {@link PatchedStringJetty94ResponseEntityReader}, but parses the response content with a
+ * @{@link ResponseParser} while it is received, instead of reading it into a String first.
+ * The rest of the content is drained so that the connection can be reused.
+ *
+ * @param <T> the type of the parsed value
+ */
+public class ParsingJetty94ResponseReader<T> implements Jetty94ResponseReader<T>
+{
+    private InputStreamResponseListener listener;
+    private final long timeoutMillis;
+    private final ResponseParser<T> parser;
+
+    public ParsingJetty94ResponseReader(long timeoutMillis, ResponseParser<T> parser)
+    {
+        this.listener = new InputStreamResponseListener();
+        this.timeoutMillis = timeoutMillis;
+        this.parser = parser;
+    }
+
+    @Override
+    public final Response.Listener getListener()
+    {
+        this.listener = new InputStreamResponseListener();
+        return this.listener;
+    }
+
+    @Override
+    public final Response getResponse() throws Exception
+    {
+        return this.listener.get(this.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public final T readResponseContent() throws Exception
+    {
+        try (InputStream inputStream = this.listener.getInputStream()) {
+            T value = parser.parse(inputStream);
+            ByteStreams.copy(inputStream, ByteStreams.nullOutputStream());
+            return value;
+        }
+    }
+
+    @Override
+    public final String readResponseContentInString() throws Exception
+    {
+        final InputStream inputStream = this.listener.getInputStream();
+        try (InputStreamReader inputStreamReader = new InputStreamReader(inputStream)) {
+            return CharStreams.toString(inputStreamReader);
+        }
+    }
+}
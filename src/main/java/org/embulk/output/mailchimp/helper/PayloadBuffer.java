@@ -0,0 +1,58 @@
+package org.embulk.output.mailchimp.helper;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.eclipse.jetty.client.api.ContentProvider;
+import org.eclipse.jetty.client.util.ByteBufferContentProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A growable buffer which a request body is encoded into, and which is handed to Jetty as it is.
+ * The content provider wraps the buffer without copying and can be replayed by retries.
+ */
+public class PayloadBuffer
+        extends ByteArrayOutputStream
+{
+    /**
+     * Instantiates a new Payload buffer.
+     *
+     * @param initialSize the expected size of the payload
+     */
+    public PayloadBuffer(final int initialSize)
+    {
+        super(initialSize);
+    }
+
+    /**
+     * Gets the number of bytes the buffer can hold without growing.
+     *
+     * @return the capacity
+     */
+    public int capacity()
+    {
+        return buf.length;
+    }
+
+    /**
+     * Wrap the written bytes as the content of a request.
+     *
+     * @param contentType the content type
+     * @return the content provider
+     */
+    public ContentProvider toContentProvider(final String contentType)
+    {
+        return new ByteBufferContentProvider(contentType, ByteBuffer.wrap(buf, 0, count));
+    }
+
+    /**
+     * Write the written bytes, which must be UTF-8 text, as a JSON string, escaped while they are copied.
+     *
+     * @param generator the generator
+     */
+    public void writeAsJsonString(final JsonGenerator generator) throws IOException
+    {
+        generator.writeUTF8String(buf, 0, count);
+    }
+}
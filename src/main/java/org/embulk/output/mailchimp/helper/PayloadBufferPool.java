@@ -0,0 +1,84 @@
+package org.embulk.output.mailchimp.helper;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the @{@link PayloadBuffer}s of finished requests to encode the next batches into, instead of
+ * allocating a buffer of several megabytes for every batch.
+ * <p>
+ * A buffer must be released only after its exchange is complete, as retries replay it. A buffer of an exchange
+ * aborted on timeout is not released at all, since Jetty may still be sending it.
+ * Buffers which grew larger than the retained size are dropped rather than kept.
+ */
+public class PayloadBufferPool
+{
+    private final BlockingQueue<PayloadBuffer> buffers;
+    private final int maxRetainedSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Instantiates a new Payload buffer pool.
+     *
+     * @param maxPooled       the max number of idle buffers kept
+     * @param maxRetainedSize the max capacity of a buffer to keep
+     */
+    public PayloadBufferPool(final int maxPooled, final int maxRetainedSize)
+    {
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+        this.maxRetainedSize = maxRetainedSize;
+    }
+
+    /**
+     * Take an idle buffer, or allocate a new one if there is none.
+     *
+     * @param expectedSize the expected size of the payload, used for a new buffer
+     * @return the empty buffer
+     */
+    public PayloadBuffer acquire(final int expectedSize)
+    {
+        PayloadBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return new PayloadBuffer(expectedSize);
+    }
+
+    /**
+     * Give back a buffer whose request is finished.
+     *
+     * @param buffer the buffer
+     */
+    public void release(final PayloadBuffer buffer)
+    {
+        if (buffer.capacity() > maxRetainedSize) {
+            return;
+        }
+        buffer.reset();
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Gets the number of buffers reused from the pool.
+     *
+     * @return the hit count
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of buffers allocated because the pool was empty.
+     *
+     * @return the miss count
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+}
@@ -0,0 +1,62 @@
+package org.embulk.output.mailchimp.helper;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.embulk.output.mailchimp.model.ErrorResponse;
+import org.embulk.output.mailchimp.model.ReportResponse;
+import org.embulk.spi.DataException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the counters and the errors of a bulk upsert response one token at a time.
+ * Other fields, such as `new_members` and `updated_members` echoing every member, are skipped
+ * without being materialized, so memory doesn't depend on the size of the response.
+ */
+public class ReportResponseParser
+        implements ResponseParser<ReportResponse>
+{
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+
+    @Override
+    public ReportResponse parse(final InputStream content) throws IOException
+    {
+        try (JsonParser parser = MAPPER.getFactory().createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new DataException("The json data in response were broken.");
+            }
+            ReportResponse reportResponse = new ReportResponse();
+            List<ErrorResponse> errors = new ArrayList<>();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("total_created".equals(field)) {
+                    reportResponse.setTotalCreated(parser.getValueAsInt());
+                }
+                else if ("total_updated".equals(field)) {
+                    reportResponse.setTotalUpdated(parser.getValueAsInt());
+                }
+                else if ("error_count".equals(field)) {
+                    reportResponse.setErrorCount(parser.getValueAsInt());
+                }
+                else if ("errors".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        errors.add(MAPPER.readValue(parser, ErrorResponse.class));
+                    }
+                }
+                else {
+                    parser.skipChildren();
+                }
+            }
+            reportResponse.setErrors(errors);
+            return reportResponse;
+        }
+    }
+}
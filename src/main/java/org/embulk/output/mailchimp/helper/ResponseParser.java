@@ -0,0 +1,20 @@
+package org.embulk.output.mailchimp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a value out of the content of a response while it is received.
+ *
+ * @param <T> the type of the value
+ */
+public interface ResponseParser<T>
+{
+    /**
+     * Parse the content. The stream is drained and closed by the caller.
+     *
+     * @param content the content stream
+     * @return the value
+     */
+    T parse(InputStream content) throws IOException;
+}
@@ -0,0 +1,111 @@
+package org.embulk.output.mailchimp.helper;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A minimal streaming reader of (ustar) tar archives, enough to read the result archives of
+ * MailChimp batch operations without extracting them to disk.
+ */
+public final class TarArchiveReader
+{
+    private static final int BLOCK_SIZE = 512;
+
+    private TarArchiveReader()
+    {
+    }
+
+    /**
+     * Consumer of the regular files of an archive.
+     */
+    public interface FileConsumer
+    {
+        /**
+         * Read a file of the archive. The stream must not be used after returning.
+         *
+         * @param name    the file name
+         * @param content the file content
+         * @throws IOException if failed to read the content
+         */
+        void accept(String name, InputStream content) throws IOException;
+    }
+
+    /**
+     * Read the regular files of the archive one by one.
+     *
+     * @param archive  the tar stream
+     * @param consumer the file consumer
+     * @throws IOException if the archive is broken
+     */
+    public static void forEachFile(final InputStream archive, final FileConsumer consumer) throws IOException
+    {
+        byte[] header = new byte[BLOCK_SIZE];
+        while (true) {
+            int read = ByteStreams.read(archive, header, 0, BLOCK_SIZE);
+            if (read < BLOCK_SIZE || isZeroBlock(header)) {
+                return;
+            }
+
+            String name = readString(header, 0, 100);
+            String prefix = readString(header, 345, 155);
+            if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+            long size = readOctal(header, 124, 12);
+            byte type = header[156];
+
+            InputStream content = ByteStreams.limit(new NonClosingInputStream(archive), size);
+            if (type == '0' || type == 0) {
+                consumer.accept(name, content);
+            }
+            // Skip what the consumer didn't read, and the padding up to the next block
+            ByteStreams.copy(content, ByteStreams.nullOutputStream());
+            long padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+            ByteStreams.skipFully(archive, padding);
+        }
+    }
+
+    private static boolean isZeroBlock(final byte[] block)
+    {
+        for (byte b : block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readString(final byte[] header, final int offset, final int length)
+    {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static long readOctal(final byte[] header, final int offset, final int length)
+    {
+        String value = readString(header, offset, length).trim();
+        return value.isEmpty() ? 0 : Long.parseLong(value, 8);
+    }
+
+    private static class NonClosingInputStream
+            extends FilterInputStream
+    {
+        NonClosingInputStream(final InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public void close()
+        {
+            // The archive stream is closed by the caller of forEachFile
+        }
+    }
+}
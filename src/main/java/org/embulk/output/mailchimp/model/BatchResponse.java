@@ -0,0 +1,100 @@
+package org.embulk.output.mailchimp.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The POJO class of MailChimp v3 batch operations status
+ */
+public class BatchResponse
+{
+    private String id;
+
+    private String status;
+
+    @JsonProperty("total_operations")
+    private int totalOperations;
+
+    @JsonProperty("finished_operations")
+    private int finishedOperations;
+
+    @JsonProperty("errored_operations")
+    private int erroredOperations;
+
+    @JsonProperty("response_body_url")
+    private String responseBodyUrl;
+
+    public String getId()
+    {
+        return id;
+    }
+
+    public void setId(String id)
+    {
+        this.id = id;
+    }
+
+    /**
+     * The status of the batch: pending, preprocessing, started, finalizing or finished.
+     *
+     * @return the status
+     */
+    public String getStatus()
+    {
+        return status;
+    }
+
+    public void setStatus(String status)
+    {
+        this.status = status;
+    }
+
+    public int getTotalOperations()
+    {
+        return totalOperations;
+    }
+
+    public void setTotalOperations(int totalOperations)
+    {
+        this.totalOperations = totalOperations;
+    }
+
+    public int getFinishedOperations()
+    {
+        return finishedOperations;
+    }
+
+    public void setFinishedOperations(int finishedOperations)
+    {
+        this.finishedOperations = finishedOperations;
+    }
+
+    public int getErroredOperations()
+    {
+        return erroredOperations;
+    }
+
+    public void setErroredOperations(int erroredOperations)
+    {
+        this.erroredOperations = erroredOperations;
+    }
+
+    /**
+     * The URL of the gzipped tar archive of the operations' results, once the batch is finished.
+     *
+     * @return the response body url
+     */
+    public String getResponseBodyUrl()
+    {
+        return responseBodyUrl;
+    }
+
+    public void setResponseBodyUrl(String responseBodyUrl)
+    {
+        this.responseBodyUrl = responseBodyUrl;
+    }
+
+    public boolean isFinished()
+    {
+        return "finished".equals(status);
+    }
+}
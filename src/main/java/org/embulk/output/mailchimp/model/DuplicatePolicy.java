@@ -0,0 +1,65 @@
+package org.embulk.output.mailchimp.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import org.embulk.config.ConfigException;
+
+/**
+ * How records of the same email within a batch are sent.
+ */
+public enum DuplicatePolicy
+{
+    /**
+     * Send every record, the duplicated ones in later requests
+     */
+    NONE("none"),
+    /**
+     * Send the last record of every email only
+     */
+    LAST_WINS("last_wins"),
+    /**
+     * Send the first record of every email only
+     */
+    FIRST_WINS("first_wins"),
+    /**
+     * Send one record of every email, where non empty values of later records overlay earlier ones and
+     * interests are unioned
+     */
+    COALESCE_NON_NULL("coalesce_non_null");
+
+    private String type;
+
+    DuplicatePolicy(final String type)
+    {
+        this.type = type;
+    }
+
+    /**
+     * Gets type.
+     *
+     * @return the type
+     */
+    public String getType()
+    {
+        return type;
+    }
+
+    /**
+     * Find by type duplicate policy.
+     *
+     * @param type the type
+     * @return the duplicate policy
+     */
+    @JsonCreator
+    public static DuplicatePolicy findByType(final String type)
+    {
+        for (DuplicatePolicy policy : values()) {
+            if (policy.getType().equals(type.toLowerCase())) {
+                return policy;
+            }
+        }
+
+        throw new ConfigException(
+                String.format("Unknown duplicate_policy '%s'. Supported policies are [none, last_wins, first_wins, coalesce_non_null]",
+                              type));
+    }
+}
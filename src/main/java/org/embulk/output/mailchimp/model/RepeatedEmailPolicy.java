@@ -0,0 +1,60 @@
+package org.embulk.output.mailchimp.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import org.embulk.config.ConfigException;
+
+/**
+ * How records of an email already sent by an earlier batch, or by another task of the job, are handled.
+ */
+public enum RepeatedEmailPolicy
+{
+    /**
+     * Send them as any other record
+     */
+    SEND("send"),
+    /**
+     * Don't send them
+     */
+    SKIP("skip"),
+    /**
+     * Send them once all other records of the task are done
+     */
+    DEFER("defer");
+
+    private String type;
+
+    RepeatedEmailPolicy(final String type)
+    {
+        this.type = type;
+    }
+
+    /**
+     * Gets type.
+     *
+     * @return the type
+     */
+    public String getType()
+    {
+        return type;
+    }
+
+    /**
+     * Find by type repeated email policy.
+     *
+     * @param type the type
+     * @return the repeated email policy
+     */
+    @JsonCreator
+    public static RepeatedEmailPolicy findByType(final String type)
+    {
+        for (RepeatedEmailPolicy policy : values()) {
+            if (policy.getType().equals(type.toLowerCase())) {
+                return policy;
+            }
+        }
+
+        throw new ConfigException(
+                String.format("Unknown repeated_email_policy '%s'. Supported policies are [send, skip, defer]",
+                              type));
+    }
+}
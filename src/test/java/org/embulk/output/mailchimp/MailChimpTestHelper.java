@@ -0,0 +1,175 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.embulk.config.ConfigSource;
+import org.embulk.output.mailchimp.model.Interest;
+import org.embulk.output.mailchimp.model.MergeField;
+import org.embulk.util.config.ConfigMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.embulk.output.mailchimp.MailChimpOutputPlugin.CONFIG_MAPPER_FACTORY;
+
+/**
+ * Setup shared by the tests: the base config, metadata of lists and a local stand-in of MailChimp API.
+ */
+public final class MailChimpTestHelper
+{
+    public static final ConfigMapper CONFIG_MAPPER = CONFIG_MAPPER_FACTORY.createConfigMapper();
+    public static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private MailChimpTestHelper()
+    {
+    }
+
+    /**
+     * The config of the list `L1`, without waits between requests.
+     */
+    public static ConfigSource config()
+    {
+        return CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("type", "mailchimp")
+                .set("auth_method", "api_key")
+                .set("apikey", "xxxxxxxxxxxxxxxxxxx-us1")
+                .set("list_id", "L1")
+                .set("sleep_between_requests_millis", 0);
+    }
+
+    /**
+     * The config of the list `L1` on a stand-in server.
+     */
+    public static ConfigSource config(final StandInServer server)
+    {
+        return config().set("endpoint", server.getEndpoint());
+    }
+
+    public static MailChimpOutputPluginDelegate.PluginTask task(final ConfigSource config)
+    {
+        return CONFIG_MAPPER.map(config, MailChimpOutputPluginDelegate.PluginTask.class);
+    }
+
+    public static MergeField mergeField(final String tag, final String type)
+    {
+        MergeField mergeField = new MergeField();
+        mergeField.setTag(tag);
+        mergeField.setType(type);
+        return mergeField;
+    }
+
+    public static Interest interest(final String id, final String name)
+    {
+        Interest interest = new Interest();
+        interest.setId(id);
+        interest.setName(name);
+        return interest;
+    }
+
+    /**
+     * Read the JSON body of a request, gunzipped if it is sent with `Content-Encoding: gzip`.
+     */
+    public static JsonNode readJson(final HttpExchange exchange) throws IOException
+    {
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        return MAPPER.readTree(in);
+    }
+
+    /**
+     * The report of a bulk upsert creating all members, which it echoes as MailChimp does.
+     */
+    public static ObjectNode report(final JsonNode members)
+    {
+        ObjectNode report = JsonNodeFactory.instance.objectNode();
+        report.putArray("new_members").addAll((ArrayNode) members);
+        report.putArray("updated_members");
+        report.putArray("errors");
+        report.put("total_created", members.size())
+                .put("total_updated", 0)
+                .put("error_count", 0);
+        return report;
+    }
+
+    public static void respond(final HttpExchange exchange, final JsonNode body) throws IOException
+    {
+        respond(exchange, 200, body.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Answer a request with a JSON body, after reading what is left of the request.
+     */
+    public static void respond(final HttpExchange exchange, final int status, final byte[] body) throws IOException
+    {
+        ByteStreams.copy(exchange.getRequestBody(), ByteStreams.nullOutputStream());
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * A local stand-in of MailChimp API, answering every path under `/3.0` by the handlers of the test.
+     */
+    public static class StandInServer
+            implements AutoCloseable
+    {
+        private final HttpServer server;
+        private final ExecutorService executor;
+
+        public StandInServer() throws IOException
+        {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            executor = Executors.newCachedThreadPool();
+            server.setExecutor(executor);
+        }
+
+        /**
+         * Handle the requests under a path, i.e. `/3.0/lists/`.
+         */
+        public StandInServer handle(final String path, final HttpHandler handler)
+        {
+            server.createContext(path, handler);
+            return this;
+        }
+
+        public StandInServer start()
+        {
+            server.start();
+            return this;
+        }
+
+        public String getBaseUrl()
+        {
+            return "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        public String getEndpoint()
+        {
+            return getBaseUrl() + "/3.0";
+        }
+
+        @Override
+        public void close()
+        {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+}
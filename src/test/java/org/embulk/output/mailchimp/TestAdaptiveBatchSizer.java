@@ -0,0 +1,78 @@
+package org.embulk.output.mailchimp;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestAdaptiveBatchSizer
+{
+    @Test
+    public void test_slowRequests_shrinkTowardsTarget()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 50, 500, 1000);
+        // 500 records of 200 bytes in 4 s: 25 bytes per ms, so 125 records fit in 1 s
+        sizer.onSuccess(500, 100000, 4000);
+        assertEquals(250, sizer.getBatchSize());
+        sizer.onSuccess(250, 50000, 2000);
+        assertEquals(125, sizer.getBatchSize());
+        sizer.onSuccess(125, 25000, 1000);
+        assertEquals(125, sizer.getBatchSize());
+    }
+
+    @Test
+    public void test_fastRequests_growUpToMax()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 50, 500, 1000);
+        sizer.onFailure(500);
+        sizer.onFailure(250);
+        assertEquals(125, sizer.getBatchSize());
+        for (int i = 0; i < 10; i++) {
+            int size = sizer.getBatchSize();
+            sizer.onSuccess(size, size * 200L, 100);
+        }
+        assertEquals(500, sizer.getBatchSize());
+    }
+
+    @Test
+    public void test_failures_stopAtMin()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 50, 500, 1000);
+        for (int i = 0; i < 10; i++) {
+            sizer.onFailure(sizer.getBatchSize());
+        }
+        assertEquals(50, sizer.getBatchSize());
+    }
+
+    @Test
+    public void test_notAdaptive_keepsMaxAndCountsSizes()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(false, 50, 500, 1000);
+        sizer.onSuccess(500, 100000, 60000);
+        sizer.onFailure(500);
+        sizer.onSuccess(3, 600, 10);
+        assertEquals(500, sizer.getBatchSize());
+
+        Map<Integer, Long> histogram = sizer.getHistogram();
+        assertEquals(Long.valueOf(2), histogram.get(512));
+        assertEquals(Long.valueOf(1), histogram.get(4));
+        assertTrue(!histogram.containsKey(1));
+    }
+
+    @Test
+    public void test_rejectedRequests_countWithoutChangingSize()
+    {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(true, 50, 500, 1000);
+        // A rejected batch isolated by halves: every request counts once, none tells how the size fares
+        sizer.onRejected(500);
+        sizer.onRejected(250);
+        sizer.onSuccess(250, 50000, 1000);
+        assertEquals(250, sizer.getBatchSize());
+
+        Map<Integer, Long> histogram = sizer.getHistogram();
+        assertEquals(Long.valueOf(1), histogram.get(512));
+        assertEquals(Long.valueOf(2), histogram.get(256));
+    }
+}
@@ -0,0 +1,87 @@
+package org.embulk.output.mailchimp;
+
+import org.embulk.output.mailchimp.helper.EmailFingerprintIndex;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestEmailFingerprintIndex
+{
+    @Test
+    public void test_add_normalizesEmails()
+    {
+        EmailFingerprintIndex index = new EmailFingerprintIndex();
+        assertTrue(index.add("Thang@Example.com"));
+        assertFalse(index.add(" thang@example.com "));
+        assertTrue(index.add("thang+1@example.com"));
+        assertTrue(index.add(0L));
+        assertFalse(index.add(0L));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void test_remove_keepsOtherEmailsFindable()
+    {
+        EmailFingerprintIndex index = new EmailFingerprintIndex();
+        for (int i = 0; i < 10000; i++) {
+            index.add("user" + i + "@example.com");
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            assertTrue(index.remove(" User" + i + "@Example.com"));
+        }
+        assertFalse(index.remove("user0@example.com"));
+        assertEquals(5000, index.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("user" + i, i % 2 == 0, index.add("user" + i + "@example.com"));
+        }
+    }
+
+    @Test
+    public void test_add_concurrentTasksSeeEachEmailOnce() throws Exception
+    {
+        final EmailFingerprintIndex index = EmailFingerprintIndex.of("test_add_concurrentTasksSeeEachEmailOnce");
+        assertSame(index, EmailFingerprintIndex.of("test_add_concurrentTasksSeeEachEmailOnce"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> tasks = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                tasks.add(executor.submit(new Callable<Integer>()
+                {
+                    @Override
+                    public Integer call()
+                    {
+                        int added = 0;
+                        for (int i = 0; i < 100000; i++) {
+                            if (index.add("user" + i + "@example.com")) {
+                                added++;
+                            }
+                        }
+                        return added;
+                    }
+                }));
+            }
+            int added = 0;
+            for (Future<Integer> task : tasks) {
+                added += task.get();
+            }
+            assertEquals(100000, added);
+            assertEquals(100000, index.size());
+            long bytesPerEmail = index.tableBytes() / index.size();
+            assertTrue("Bytes per email: " + bytesPerEmail, bytesPerEmail >= 10 && bytesPerEmail <= 16);
+        }
+        finally {
+            executor.shutdownNow();
+            EmailFingerprintIndex.release("test_add_concurrentTasksSeeEachEmailOnce");
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.mailchimp.helper.PayloadBuffer;
+import org.embulk.output.mailchimp.model.Interest;
+import org.embulk.output.mailchimp.model.ReportResponse;
+import org.embulk.spi.Schema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.MAPPER;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.StandInServer;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.config;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.interest;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.mergeField;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.report;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.task;
+import static org.embulk.spi.type.Types.STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares bytes on the wire of typical bulk upserts with and without `use_gzip`, against a local stand-in
+ * of MailChimp which echoes the members as MailChimp does, and gzips its responses whenever the request
+ * accepts it.
+ */
+public class TestGzipPayload
+{
+    private static final int BATCH_SIZE = 500;
+    private static final int ROUNDS = 5;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private StandInServer server;
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final List<String> contentEncodings = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> acceptEncodings = Collections.synchronizedList(new ArrayList<String>());
+    private final List<JsonNode> pushedMembers = Collections.synchronizedList(new ArrayList<JsonNode>());
+
+    @Before
+    public void setup() throws IOException
+    {
+        server = new StandInServer().handle("/3.0/lists/", this::handleList).start();
+    }
+
+    @After
+    public void teardown()
+    {
+        server.close();
+    }
+
+    @Test
+    public void test_gzip_reducesBytesOnTheWire() throws Exception
+    {
+        run(false);
+        long plainRequestBytes = requestBytes.get();
+        long plainResponseBytes = responseBytes.get();
+        run(true);
+
+        assertTrue("Request should shrink to less than a third", requestBytes.get() * 3 < plainRequestBytes);
+        // Responses are gzipped the same way in both runs, only requests differ
+        assertEquals(plainResponseBytes, responseBytes.get());
+    }
+
+    @Test
+    public void test_push_sendsGzipHeaderAndMembers() throws Exception
+    {
+        run(true);
+
+        assertEquals(ROUNDS, contentEncodings.size());
+        for (String contentEncoding : contentEncodings) {
+            assertEquals("gzip", contentEncoding);
+        }
+        assertEquals(BATCH_SIZE * ROUNDS, pushedMembers.size());
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            JsonNode member = pushedMembers.get(i);
+            assertEquals("user" + i + "@example.com", member.get("email_address").asText());
+            assertEquals("First" + i, member.get("merge_fields").get("FNAME").asText());
+            assertEquals("https://example.com/users/" + i, member.get("merge_fields").get("WEBSITE").asText());
+        }
+    }
+
+    @Test
+    public void test_push_withoutGzipSendsPlainBody() throws Exception
+    {
+        run(false);
+
+        assertEquals(ROUNDS, contentEncodings.size());
+        for (String contentEncoding : contentEncodings) {
+            assertNull(contentEncoding);
+        }
+        assertEquals(BATCH_SIZE * ROUNDS, pushedMembers.size());
+    }
+
+    @Test
+    public void test_push_acceptsGzipResponses() throws Exception
+    {
+        run(false);
+
+        // Every request asks for a gzipped response, and the gzipped reports are read back
+        assertEquals(ROUNDS, acceptEncodings.size());
+        for (String acceptEncoding : acceptEncodings) {
+            assertTrue(String.valueOf(acceptEncoding), acceptEncoding != null && acceptEncoding.contains("gzip"));
+        }
+    }
+
+    private void run(final boolean useGzip) throws Exception
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config(server)
+                .set("merge_fields", ImmutableList.of("website"))
+                .set("grouping_columns", ImmutableList.of("interests"))
+                .set("use_gzip", useGzip));
+        Map<String, Interest> interests = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            interests.put("Interest " + i, interest("9143cf3bd" + i, "Interest " + i));
+        }
+        MemberMappingPlan plan = MemberMappingPlan.build(schema(), task,
+                                                         ImmutableMap.of("website", mergeField("WEBSITE", "url")),
+                                                         ImmutableMap.<String, Map<String, Interest>>of("interests", interests));
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            rows.add(new String[]{"user" + i + "@example.com", "First" + i, "Last" + i, "",
+                                  "https://example.com/users/" + i, "Interest " + (i % 20) + ",Interest 3"});
+        }
+
+        requestBytes.set(0);
+        responseBytes.set(0);
+        try (MailChimpClient client = new MailChimpClient(task);
+                MemberBatchEncoder encoder = new MemberBatchEncoder(plan, 1)) {
+            for (int round = 0; round < ROUNDS; round++) {
+                PayloadBuffer payload = new PayloadBuffer(1024);
+                encoder.writePayload(rows, false, useGzip ? new GZIPOutputStream(payload) : payload);
+                ReportResponse response = client.pushOnce(payload, task);
+                assertEquals(BATCH_SIZE, response.getTotalCreated());
+            }
+        }
+    }
+
+    private void handleList(final HttpExchange exchange) throws IOException
+    {
+        byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, "{\"id\":\"L1\"}".getBytes("UTF-8"));
+            return;
+        }
+        requestBytes.addAndGet(body.length);
+        String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        contentEncodings.add(contentEncoding);
+        acceptEncodings.add(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        InputStream in = new ByteArrayInputStream(body);
+        if ("gzip".equals(contentEncoding)) {
+            in = new GZIPInputStream(in);
+        }
+        JsonNode members = MAPPER.readTree(in).get("members");
+        for (JsonNode member : members) {
+            pushedMembers.add(member);
+        }
+        respond(exchange, report(members).toString().getBytes("UTF-8"));
+    }
+
+    private void respond(final HttpExchange exchange, final byte[] body) throws IOException
+    {
+        byte[] content = body;
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(body);
+            }
+            content = compressed.toByteArray();
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+        }
+        responseBytes.addAndGet(content.length);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, content.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content);
+        }
+    }
+
+    private static Schema schema()
+    {
+        return Schema.builder()
+                .add("email", STRING)
+                .add("fname", STRING)
+                .add("lname", STRING)
+                .add("website", STRING)
+                .add("interests", STRING)
+                .build();
+    }
+}
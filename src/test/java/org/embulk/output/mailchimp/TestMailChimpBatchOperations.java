@@ -0,0 +1,173 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.mailchimp.helper.PayloadBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.MAPPER;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.StandInServer;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.config;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.respond;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.task;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs batch operations against a local stand-in of MailChimp `/batches` and the result download.
+ */
+public class TestMailChimpBatchOperations
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private StandInServer server;
+    private final List<JsonNode> uploads = Collections.synchronizedList(new ArrayList<JsonNode>());
+    private final AtomicInteger polls = new AtomicInteger();
+
+    @Before
+    public void setup() throws IOException
+    {
+        server = new StandInServer()
+                .handle("/3.0/lists/", exchange -> respond(exchange, 200, "{\"id\":\"L1\"}".getBytes(StandardCharsets.UTF_8)))
+                .handle("/3.0/batches", this::handleBatches)
+                .handle("/results/", exchange -> respond(exchange, 200, resultArchive()))
+                .start();
+    }
+
+    @After
+    public void teardown()
+    {
+        server.close();
+    }
+
+    @Test
+    public void test_awaitResults_countsResultArchive() throws Exception
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config(server)
+                .set("use_batch_operations", true)
+                .set("batch_operations_poll_interval_millis", 10));
+        try (MailChimpClient client = new MailChimpClient(task)) {
+            MailChimpBatchOperations batchOperations = new MailChimpBatchOperations(task, client);
+            batchOperations.add(subscribers("a@example.com", "b@example.com", "c@example.com"), 3);
+            batchOperations.add(subscribers("d@example.com", "e@example.com"), 2);
+            batchOperations.awaitResults();
+
+            assertEquals("Operations should be uploaded at once", 1, uploads.size());
+            assertEquals(2, uploads.get(0).get("operations").size());
+            assertEquals("/lists/L1", uploads.get(0).get("operations").get(0).get("path").asText());
+            assertEquals(3, batchOperations.getTotalCreated());
+            assertEquals(2, batchOperations.getErrorCount());
+        }
+    }
+
+    private static PayloadBuffer subscribers(final String... emails) throws IOException
+    {
+        ObjectNode subscribers = JsonNodeFactory.instance.objectNode();
+        ArrayNode members = subscribers.putArray("members");
+        for (String email : emails) {
+            members.addObject().put("email_address", email).put("status", "subscribed");
+        }
+        subscribers.put("update_existing", false);
+        PayloadBuffer payload = new PayloadBuffer(256);
+        payload.write(subscribers.toString().getBytes(StandardCharsets.UTF_8));
+        return payload;
+    }
+
+    private void handleBatches(final HttpExchange exchange) throws IOException
+    {
+        if ("POST".equals(exchange.getRequestMethod())) {
+            uploads.add(MAPPER.readTree(exchange.getRequestBody()));
+            respond(exchange, 200, "{\"id\":\"b1\",\"status\":\"pending\"}".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        String status = polls.incrementAndGet() < 2 ? "started" : "finished";
+        ObjectNode batch = JsonNodeFactory.instance.objectNode()
+                .put("id", "b1")
+                .put("status", status)
+                .put("total_operations", 2)
+                .put("finished_operations", "finished".equals(status) ? 2 : 1)
+                .put("errored_operations", 0);
+        if ("finished".equals(status)) {
+            batch.put("response_body_url", server.getBaseUrl() + "/results/b1.tar.gz");
+        }
+        respond(exchange, batch);
+    }
+
+    /**
+     * Every operation creates all but its first member, which fails.
+     */
+    private byte[] resultArchive() throws IOException
+    {
+        ArrayNode results = JsonNodeFactory.instance.arrayNode();
+        for (JsonNode operation : uploads.get(0).get("operations")) {
+            JsonNode members = MAPPER.readTree(operation.get("body").asText()).get("members");
+            ObjectNode response = JsonNodeFactory.instance.objectNode()
+                    .put("total_created", members.size() - 1)
+                    .put("total_updated", 0)
+                    .put("error_count", 1);
+            response.putArray("new_members").addAll((ArrayNode) members);
+            response.putArray("errors").addObject()
+                    .put("email_address", members.get(0).get("email_address").asText())
+                    .put("error", "looks fake or invalid");
+            results.addObject()
+                    .put("status_code", 200)
+                    .put("operation_id", operation.get("operation_id").asText())
+                    .put("response", response.toString());
+        }
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(archive)) {
+            writeTarEntry(gzip, "b1/", '5', new byte[0]);
+            writeTarEntry(gzip, "b1/0.json", '0', results.toString().getBytes(StandardCharsets.UTF_8));
+            gzip.write(new byte[1024]);
+        }
+        return archive.toByteArray();
+    }
+
+    private static void writeTarEntry(final OutputStream out, final String name, final char type, final byte[] content)
+            throws IOException
+    {
+        byte[] header = new byte[512];
+        putString(header, 0, name);
+        putString(header, 100, "0000644");
+        putString(header, 124, String.format("%011o", content.length));
+        putString(header, 136, String.format("%011o", 0));
+        header[156] = (byte) type;
+        putString(header, 257, "ustar");
+        putString(header, 263, "00");
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        int checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        putString(header, 148, String.format("%06o", checksum));
+        out.write(header);
+        out.write(content);
+        out.write(new byte[(512 - content.length % 512) % 512]);
+    }
+
+    private static void putString(final byte[] header, final int offset, final String value)
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+}
@@ -0,0 +1,138 @@
+package org.embulk.output.mailchimp;
+
+import com.google.common.collect.ImmutableList;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.mailchimp.helper.MailChimpConcurrencyGovernor;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.config;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.task;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestMailChimpConcurrencyGovernor
+{
+    private static final long WAIT_MILLIS = 200;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void test_acquire_grantsPermitsInArrivalOrder() throws Exception
+    {
+        final MailChimpOutputPluginDelegate.PluginTask task = task(config()
+                .set("apikey", "fairness-us1")
+                .set("max_concurrent_requests", 1));
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        MailChimpConcurrencyGovernor holder = MailChimpConcurrencyGovernor.of(task);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        List<Future<?>> waiters = new ArrayList<>();
+        try {
+            holder.acquire();
+            for (int i = 0; i < 5; i++) {
+                final int waiter = i;
+                final MailChimpConcurrencyGovernor governor = MailChimpConcurrencyGovernor.of(task);
+                waiters.add(executor.submit(() -> {
+                    governor.acquire();
+                    order.add(waiter);
+                    governor.releasePermit();
+                }));
+                // Let the waiter queue up before the next one arrives
+                Thread.sleep(50);
+            }
+            holder.releasePermit();
+            for (Future<?> waiter : waiters) {
+                waiter.get(5, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            for (int i = 0; i <= waiters.size(); i++) {
+                MailChimpConcurrencyGovernor.release(task);
+            }
+        }
+        assertEquals(ImmutableList.of(0, 1, 2, 3, 4), order);
+    }
+
+    @Test
+    public void test_getWaitMillis_recordsTimeWaitedForPermit() throws Exception
+    {
+        final MailChimpOutputPluginDelegate.PluginTask task = task(config()
+                .set("apikey", "wait-us1")
+                .set("max_concurrent_requests", 1));
+        MailChimpConcurrencyGovernor holder = MailChimpConcurrencyGovernor.of(task);
+        final MailChimpConcurrencyGovernor waiter = MailChimpConcurrencyGovernor.of(task);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            holder.acquire();
+            Future<?> waiting = executor.submit(() -> {
+                waiter.acquire();
+                waiter.releasePermit();
+            });
+            Thread.sleep(WAIT_MILLIS);
+            holder.releasePermit();
+            waiting.get(5, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdownNow();
+            MailChimpConcurrencyGovernor.release(task);
+            MailChimpConcurrencyGovernor.release(task);
+        }
+        assertTrue("Waited " + waiter.getWaitMillis() + " ms", waiter.getWaitMillis() >= WAIT_MILLIS / 2);
+        assertTrue("Waited " + holder.getWaitMillis() + " ms", holder.getWaitMillis() < WAIT_MILLIS / 2);
+    }
+
+    @Test
+    public void test_of_keysByCredentialAndLimit() throws Exception
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config()
+                .set("apikey", "limits-us1")
+                .set("max_concurrent_requests", 1));
+        MailChimpOutputPluginDelegate.PluginTask otherLimit = task(config()
+                .set("apikey", "limits-us1")
+                .set("max_concurrent_requests", 2));
+        MailChimpConcurrencyGovernor holder = MailChimpConcurrencyGovernor.of(task);
+        MailChimpConcurrencyGovernor other = MailChimpConcurrencyGovernor.of(otherLimit);
+        try {
+            holder.acquire();
+            // The permit of the first limit is taken, the other limit still has both of its own
+            other.acquire();
+            other.acquire();
+            assertTrue(other.getWaitMillis() < WAIT_MILLIS);
+        }
+        finally {
+            MailChimpConcurrencyGovernor.release(task);
+            MailChimpConcurrencyGovernor.release(otherLimit);
+        }
+    }
+
+    @Test
+    public void test_release_dropsPermitsOfLastTask() throws Exception
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config()
+                .set("apikey", "dropped-us1")
+                .set("max_concurrent_requests", 1));
+        MailChimpConcurrencyGovernor first = MailChimpConcurrencyGovernor.of(task);
+        first.acquire();
+        MailChimpConcurrencyGovernor.release(task);
+
+        // The permit held by the released task doesn't block the next job
+        MailChimpConcurrencyGovernor next = MailChimpConcurrencyGovernor.of(task);
+        try {
+            next.acquire();
+            assertTrue(next.getWaitMillis() < WAIT_MILLIS);
+        }
+        finally {
+            MailChimpConcurrencyGovernor.release(task);
+        }
+    }
+}
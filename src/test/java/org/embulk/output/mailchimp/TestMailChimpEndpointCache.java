@@ -0,0 +1,118 @@
+package org.embulk.output.mailchimp;
+
+import org.embulk.config.ConfigException;
+import org.embulk.output.mailchimp.helper.MailChimpEndpointCache;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestMailChimpEndpointCache
+{
+    @Test
+    public void test_get_sharesOneDiscoveryAcrossThreads() throws Exception
+    {
+        final AtomicInteger discoveries = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Callable<String> discovery = () -> {
+            discoveries.incrementAndGet();
+            Thread.sleep(100);
+            return "https://us1.api.mailchimp.com/3.0";
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> endpoints = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                endpoints.add(executor.submit(() -> {
+                    start.await();
+                    return MailChimpEndpointCache.get("api_key:single-flight", Optional.<String>empty(), discovery);
+                }));
+            }
+            start.countDown();
+            for (Future<String> endpoint : endpoints) {
+                assertEquals("https://us1.api.mailchimp.com/3.0", endpoint.get());
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, discoveries.get());
+    }
+
+    @Test
+    public void test_get_keysByCredential()
+    {
+        assertEquals("https://us1.api.mailchimp.com/3.0",
+                     MailChimpEndpointCache.get("api_key:account-us1", Optional.<String>empty(), () -> "https://us1.api.mailchimp.com/3.0"));
+        assertEquals("https://us2.api.mailchimp.com/3.0",
+                     MailChimpEndpointCache.get("api_key:account-us2", Optional.<String>empty(), () -> "https://us2.api.mailchimp.com/3.0"));
+    }
+
+    @Test
+    public void test_invalidate_discoversInsteadOfResolvedEndpoint()
+    {
+        final AtomicInteger discoveries = new AtomicInteger();
+        Callable<String> discovery = () -> {
+            discoveries.incrementAndGet();
+            return "https://us9.api.mailchimp.com/3.0";
+        };
+        Optional<String> resolved = Optional.of("https://us3.api.mailchimp.com/3.0");
+
+        assertEquals("https://us3.api.mailchimp.com/3.0", MailChimpEndpointCache.get("oauth:moved", resolved, discovery));
+        assertEquals(0, discoveries.get());
+
+        MailChimpEndpointCache.invalidate("oauth:moved");
+        assertEquals("https://us9.api.mailchimp.com/3.0", MailChimpEndpointCache.get("oauth:moved", resolved, discovery));
+        assertEquals("https://us9.api.mailchimp.com/3.0", MailChimpEndpointCache.get("oauth:moved", resolved, discovery));
+        assertEquals(1, discoveries.get());
+    }
+
+    @Test
+    public void test_invalidate_keepsResolvedEndpointOfOtherCredentials()
+    {
+        Optional<String> resolved = Optional.of("https://us4.api.mailchimp.com/3.0");
+        Callable<String> discovery = () -> "https://us8.api.mailchimp.com/3.0";
+
+        assertEquals("https://us4.api.mailchimp.com/3.0", MailChimpEndpointCache.get("oauth:revoked", resolved, discovery));
+        MailChimpEndpointCache.invalidate("oauth:revoked");
+
+        assertEquals("https://us8.api.mailchimp.com/3.0", MailChimpEndpointCache.get("oauth:revoked", resolved, discovery));
+        assertEquals("https://us4.api.mailchimp.com/3.0", MailChimpEndpointCache.get("oauth:same-dc", resolved, discovery));
+    }
+
+    @Test
+    public void test_get_keepsInvalidationWhenRediscoveryFails()
+    {
+        final AtomicInteger discoveries = new AtomicInteger();
+        Callable<String> discovery = () -> {
+            if (discoveries.incrementAndGet() == 1) {
+                throw new ConfigException("Unable to connect the data center");
+            }
+            return "https://us6.api.mailchimp.com/3.0";
+        };
+        Optional<String> resolved = Optional.of("https://us5.api.mailchimp.com/3.0");
+
+        assertEquals("https://us5.api.mailchimp.com/3.0", MailChimpEndpointCache.get("oauth:flaky", resolved, discovery));
+        MailChimpEndpointCache.invalidate("oauth:flaky");
+        try {
+            MailChimpEndpointCache.get("oauth:flaky", resolved, discovery);
+            fail("Expected the failed discovery to be thrown");
+        }
+        catch (ConfigException e) {
+            assertEquals(1, discoveries.get());
+        }
+        assertEquals("https://us6.api.mailchimp.com/3.0", MailChimpEndpointCache.get("oauth:flaky", resolved, discovery));
+        assertEquals(2, discoveries.get());
+    }
+}
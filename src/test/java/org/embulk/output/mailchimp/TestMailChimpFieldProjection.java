@@ -0,0 +1,179 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Splitter;
+import com.sun.net.httpserver.HttpExchange;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.mailchimp.helper.PayloadBuffer;
+import org.embulk.output.mailchimp.model.MergeField;
+import org.embulk.output.mailchimp.model.ReportResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.MAPPER;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.StandInServer;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.config;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.report;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.respond;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.task;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that requests ask for the fields they read only, against a local stand-in of MailChimp
+ * which honors the `fields` parameter.
+ */
+public class TestMailChimpFieldProjection
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private StandInServer server;
+    private final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicLong fullResponseBytes = new AtomicLong();
+    private final AtomicLong sentResponseBytes = new AtomicLong();
+
+    @Before
+    public void setup() throws IOException
+    {
+        server = new StandInServer().handle("/3.0/lists/", this::handleList).start();
+    }
+
+    @After
+    public void teardown()
+    {
+        server.close();
+    }
+
+    @Test
+    public void test_pushOnce_requestsReportFieldsOnly() throws Exception
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config(server));
+        try (MailChimpClient client = new MailChimpClient(task)) {
+            PayloadBuffer payload = new PayloadBuffer(1024);
+            ObjectNode subscribers = JsonNodeFactory.instance.objectNode();
+            ArrayNode members = subscribers.putArray("members");
+            for (int i = 0; i < 500; i++) {
+                members.addObject().put("email_address", "user" + i + "@example.com").put("status", "subscribed");
+            }
+            payload.write(subscribers.toString().getBytes(StandardCharsets.UTF_8));
+
+            ReportResponse reportResponse = client.pushOnce(payload, task);
+            assertEquals(500, reportResponse.getTotalCreated());
+        }
+
+        String pushQuery = queries.get(queries.size() - 1);
+        assertEquals("fields=" + MailChimpClient.REPORT_RESPONSE_FIELDS, pushQuery);
+        assertTrue("Response should drop to a fraction: " + sentResponseBytes + " of " + fullResponseBytes,
+                   sentResponseBytes.get() * 10 < fullResponseBytes.get());
+    }
+
+    @Test
+    public void test_mergeFieldByTag_requestsUsedFieldsOnly() throws Exception
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config(server));
+        try (MailChimpClient client = new MailChimpClient(task)) {
+            Map<String, MergeField> mergeFields = client.mergeFieldByTag(task);
+            assertEquals("WEBSITE", mergeFields.get("website").getTag());
+            assertEquals("url", mergeFields.get("website").getType());
+        }
+
+        String fetchQuery = queries.get(queries.size() - 1);
+        assertTrue(fetchQuery, fetchQuery.contains("fields=total_items,merge_fields.merge_id,merge_fields.tag,merge_fields.name,merge_fields.type"));
+        assertTrue("Unused fields should be left out", sentResponseBytes.get() < fullResponseBytes.get());
+    }
+
+    private void handleList(final HttpExchange exchange) throws IOException
+    {
+        String query = exchange.getRequestURI().getRawQuery();
+        queries.add(query);
+        String path = exchange.getRequestURI().getPath();
+        ObjectNode response;
+        if ("POST".equals(exchange.getRequestMethod())) {
+            response = report(MAPPER.readTree(exchange.getRequestBody()).get("members"));
+        }
+        else if (path.endsWith("/merge-fields")) {
+            response = JsonNodeFactory.instance.objectNode();
+            response.putArray("merge_fields").addObject()
+                    .put("merge_id", 3)
+                    .put("tag", "WEBSITE")
+                    .put("name", "Website")
+                    .put("type", "url")
+                    .put("required", false)
+                    .put("default_value", "")
+                    .put("public", true)
+                    .put("display_order", 4)
+                    .put("help_text", "Where we can find you on the web")
+                    .put("list_id", "L1")
+                    .putObject("options").put("size", 25);
+            response.put("total_items", 1);
+            response.putArray("_links").addObject().put("rel", "self").put("href", server.getBaseUrl() + path);
+        }
+        else {
+            response = JsonNodeFactory.instance.objectNode().put("id", "L1").put("name", "Subscribers");
+        }
+
+        fullResponseBytes.set(response.toString().length());
+        byte[] body = project(response, query).toString().getBytes(StandardCharsets.UTF_8);
+        sentResponseBytes.set(body.length);
+        respond(exchange, 200, body);
+    }
+
+    /**
+     * Keep the fields listed by the `fields` parameter, as `a` or `a.b` for fields of objects in the array `a`.
+     */
+    private static JsonNode project(final ObjectNode response, final String query) throws IOException
+    {
+        if (query == null) {
+            return response;
+        }
+        List<String> fields = null;
+        for (String parameter : Splitter.on('&').split(query)) {
+            if (parameter.startsWith("fields=")) {
+                fields = Splitter.on(',').splitToList(URLDecoder.decode(parameter.substring("fields=".length()), "UTF-8"));
+            }
+        }
+        if (fields == null) {
+            return response;
+        }
+        ObjectNode projected = JsonNodeFactory.instance.objectNode();
+        for (String field : fields) {
+            List<String> names = Splitter.on('.').limit(2).splitToList(field);
+            JsonNode value = response.get(names.get(0));
+            if (value == null) {
+                continue;
+            }
+            if (names.size() == 1) {
+                projected.set(names.get(0), value);
+                continue;
+            }
+            ArrayNode records = projected.has(names.get(0))
+                    ? (ArrayNode) projected.get(names.get(0))
+                    : projected.putArray(names.get(0));
+            Iterator<JsonNode> elements = value.elements();
+            for (int i = 0; elements.hasNext(); i++) {
+                JsonNode element = elements.next();
+                ObjectNode record = i < records.size() ? (ObjectNode) records.get(i) : records.addObject();
+                if (element.has(names.get(1))) {
+                    record.set(names.get(1), element.get(names.get(1)));
+                }
+            }
+        }
+        return projected;
+    }
+}
@@ -23,6 +23,7 @@ import java.util.function.Function;
 
 import static org.embulk.output.mailchimp.helper.MailChimpHelper.caseInsensitiveColumnNames;
 import static org.embulk.output.mailchimp.helper.MailChimpHelper.maskEmail;
+import static org.embulk.output.mailchimp.helper.MailChimpHelper.normalizeEmail;
 import static org.embulk.output.mailchimp.helper.MailChimpHelper.orderJsonNode;
 import static org.embulk.output.mailchimp.helper.MailChimpHelper.toJsonNode;
 import static org.junit.Assert.assertArrayEquals;
@@ -42,6 +43,12 @@ public class TestMailChimpHelper
         assertEquals("Email should match", expect, maskEmail(given));
     }
 
+    @Test
+    public void test_normalizeEmail()
+    {
+        assertEquals("thang@example.com", normalizeEmail(" Thang@Example.COM\t"));
+    }
+
     @Test
     public void test_containsCaseInsensitive_validMergeFields()
     {
@@ -0,0 +1,95 @@
+package org.embulk.output.mailchimp;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.mailchimp.helper.MailChimpHttpClientPool;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.config;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.task;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestMailChimpHttpClientPool
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void test_release_stopsClientOnLastRelease()
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config().set("apikey", "pooled-us1"));
+        MailChimpOutputPluginDelegate.PluginTask otherTask = task(config().set("apikey", "pooled-us1"));
+
+        HttpClient client = MailChimpHttpClientPool.acquire(task);
+        assertSame(client, MailChimpHttpClientPool.acquire(otherTask));
+        assertEquals(2, MailChimpHttpClientPool.getReferences(task));
+
+        MailChimpHttpClientPool.release(otherTask);
+        assertEquals(1, MailChimpHttpClientPool.getReferences(task));
+        assertTrue(client.isRunning());
+
+        MailChimpHttpClientPool.release(task);
+        assertEquals(0, MailChimpHttpClientPool.getReferences(task));
+        assertTrue(client.isStopped());
+
+        // Releasing more than acquired is ignored
+        MailChimpHttpClientPool.release(task);
+        assertEquals(0, MailChimpHttpClientPool.getReferences(task));
+    }
+
+    @Test
+    public void test_acquire_keysByTimeoutAndEndpoint()
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config().set("apikey", "settings-us1"));
+        MailChimpOutputPluginDelegate.PluginTask otherTimeout = task(config()
+                .set("apikey", "settings-us1")
+                .set("timeout_millis", 5000));
+        MailChimpOutputPluginDelegate.PluginTask otherEndpoint = task(config()
+                .set("apikey", "settings-us1")
+                .set("endpoint", "http://127.0.0.1:8080/3.0"));
+
+        HttpClient client = MailChimpHttpClientPool.acquire(task);
+        try {
+            HttpClient timeoutClient = MailChimpHttpClientPool.acquire(otherTimeout);
+            HttpClient endpointClient = MailChimpHttpClientPool.acquire(otherEndpoint);
+            assertNotSame(client, timeoutClient);
+            assertNotSame(client, endpointClient);
+            assertEquals(5000, timeoutClient.getIdleTimeout());
+            assertEquals(1, MailChimpHttpClientPool.getReferences(task));
+        }
+        finally {
+            MailChimpHttpClientPool.release(task);
+            MailChimpHttpClientPool.release(otherTimeout);
+            MailChimpHttpClientPool.release(otherEndpoint);
+        }
+    }
+
+    @Test
+    public void test_acquire_sizesConnectionsByConcurrentRequests()
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config()
+                .set("apikey", "sized-us1")
+                .set("max_concurrent_requests", 4));
+        MailChimpOutputPluginDelegate.PluginTask otherLimit = task(config()
+                .set("apikey", "sized-us1")
+                .set("max_concurrent_requests", 32));
+
+        HttpClient client = MailChimpHttpClientPool.acquire(task);
+        try {
+            HttpClient otherClient = MailChimpHttpClientPool.acquire(otherLimit);
+            assertNotSame(client, otherClient);
+            assertEquals(4, client.getMaxConnectionsPerDestination());
+            assertEquals(32, otherClient.getMaxConnectionsPerDestination());
+            assertTrue(((QueuedThreadPool) otherClient.getExecutor()).getMaxThreads() > 32);
+        }
+        finally {
+            MailChimpHttpClientPool.release(task);
+            MailChimpHttpClientPool.release(otherLimit);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.embulk.output.mailchimp;
+
+import com.google.common.collect.ImmutableMap;
+import org.embulk.output.mailchimp.helper.MailChimpMetadataCache;
+import org.embulk.output.mailchimp.model.Interest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.interest;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.mergeField;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMailChimpMetadataCache
+{
+    private static final String ENDPOINT = "https://us1.api.mailchimp.com/3.0";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_write_thenRead() throws Exception
+    {
+        File directory = new File(folder.getRoot(), "cache");
+        MailChimpMetadataCache cache = new MailChimpMetadataCache(directory.toPath(), 60000);
+        assertFalse(cache.read(ENDPOINT, "L1").isPresent());
+
+        cache.write(ENDPOINT, "L1", entry());
+        // Refreshing replaces the entry
+        cache.write(ENDPOINT, "L1", entry());
+
+        Optional<MailChimpMetadataCache.Entry> cached = cache.read(ENDPOINT, "L1");
+        assertTrue(cached.isPresent());
+        assertEquals(3, cached.get().getMergeFieldCount());
+        assertEquals("WEBSITE", cached.get().getMergeFieldsByTag().get("website").getTag());
+        assertEquals("url", cached.get().getMergeFieldsByTag().get("website").getType());
+        assertEquals("a1", cached.get().getInterestsByCategory().get("interests").get("Donating").getId());
+
+        // Keyed by data center and list, and no temporary file left
+        assertFalse(cache.read("https://us2.api.mailchimp.com/3.0", "L1").isPresent());
+        assertFalse(cache.read(ENDPOINT, "L2").isPresent());
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void test_read_expired() throws Exception
+    {
+        MailChimpMetadataCache cache = new MailChimpMetadataCache(folder.getRoot().toPath(), 1);
+        cache.write(ENDPOINT, "L1", entry());
+        Thread.sleep(10);
+        assertFalse(cache.read(ENDPOINT, "L1").isPresent());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void test_read_corruptIsDeleted() throws Exception
+    {
+        MailChimpMetadataCache cache = new MailChimpMetadataCache(folder.getRoot().toPath(), 60000);
+        cache.write(ENDPOINT, "L1", entry());
+        File[] files = folder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        Files.write(files[0].toPath(), "{\"merge_field_count\":".getBytes(StandardCharsets.UTF_8));
+        assertFalse(cache.read(ENDPOINT, "L1").isPresent());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void test_entry_countsInterestsByCategory()
+    {
+        assertEquals(ImmutableMap.of("interests", 1), entry().getInterestCountByCategory());
+    }
+
+    private static MailChimpMetadataCache.Entry entry()
+    {
+        return new MailChimpMetadataCache.Entry(3, ImmutableMap.of("website", mergeField("WEBSITE", "url")),
+                                                ImmutableMap.<String, Map<String, Interest>>of(
+                                                        "interests", ImmutableMap.of("Donating", interest("a1", "Donating"))));
+    }
+}
@@ -6,6 +6,7 @@ import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
+import org.embulk.output.mailchimp.helper.EmailFingerprintIndex;
 import org.embulk.spi.OutputPlugin;
 import org.embulk.spi.Schema;
 import org.embulk.spi.TransactionalPageOutput;
@@ -15,10 +16,17 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.embulk.output.mailchimp.MailChimpOutputPlugin.CONFIG_MAPPER_FACTORY;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.MAPPER;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.StandInServer;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.respond;
 import static org.embulk.spi.type.Types.STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Created by thangnc on 4/14/17.
@@ -112,6 +120,43 @@ public class TestMailChimpOutputPlugin
         plugin.transaction(config, schema, 0, new OutputControl());
     }
 
+    @Test
+    public void test_transaction_releasesEmailIndexWhenTasksFail() throws Exception
+    {
+        try (StandInServer server = new StandInServer()) {
+            // The list without merge fields
+            server.handle("/3.0/lists/", exchange -> respond(exchange, MAPPER.createObjectNode()
+                    .put("id", "L1")
+                    .put("total_items", 0)
+                    .set("merge_fields", MAPPER.createArrayNode()))).start();
+            ConfigSource config = MailChimpTestHelper.config(server).set("repeated_email_policy", "skip");
+            Schema schema = Schema.builder()
+                    .add("email", STRING)
+                    .add("fname", STRING)
+                    .add("lname", STRING)
+                    .build();
+
+            final List<String> indexIds = new ArrayList<>();
+            try {
+                plugin.transaction(config, schema, 1, taskSource -> {
+                    MailChimpOutputPluginDelegate.PluginTask task = CONFIG_MAPPER_FACTORY.createTaskMapper()
+                            .map(taskSource, MailChimpOutputPluginDelegate.PluginTask.class);
+                    indexIds.add(task.getEmailIndexId().get());
+                    EmailFingerprintIndex.of(task.getEmailIndexId().get()).add("a@example.com");
+                    throw new RuntimeException("Task failed");
+                });
+                fail("Expected the task to fail");
+            }
+            catch (RuntimeException e) {
+                assertEquals("Task failed", e.getMessage());
+            }
+
+            // A new index, without the email of the failed run
+            assertTrue(EmailFingerprintIndex.of(indexIds.get(0)).add("a@example.com"));
+            EmailFingerprintIndex.release(indexIds.get(0));
+        }
+    }
+
     /**
      * Load plugin config with Guava & Joda support
      */
@@ -0,0 +1,181 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sun.net.httpserver.HttpExchange;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.TaskReport;
+import org.embulk.output.mailchimp.model.Interest;
+import org.embulk.output.mailchimp.model.MergeField;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.msgpack.value.ValueFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.MAPPER;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.StandInServer;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.config;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.interest;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.mergeField;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.readJson;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.report;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.respond;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.task;
+import static org.embulk.spi.type.Types.BOOLEAN;
+import static org.embulk.spi.type.Types.DOUBLE;
+import static org.embulk.spi.type.Types.JSON;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.embulk.spi.type.Types.TIMESTAMP;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pins the members encoded from the rows of pages, for every column type, against a local stand-in of MailChimp.
+ */
+public class TestMailChimpPageOutput
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private StandInServer server;
+    private final List<JsonNode> members = Collections.synchronizedList(new ArrayList<JsonNode>());
+    private final List<String> metadataRequests = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setup() throws IOException
+    {
+        server = new StandInServer().handle("/3.0/lists/", this::handleList).start();
+    }
+
+    @After
+    public void teardown()
+    {
+        server.close();
+    }
+
+    @Test
+    public void test_add_encodesEveryColumnType()
+    {
+        Schema schema = Schema.builder()
+                .add("email", STRING)
+                .add("fname", STRING)
+                .add("lname", STRING)
+                .add("score", LONG)
+                .add("rate", DOUBLE)
+                .add("active", BOOLEAN)
+                .add("joined", TIMESTAMP)
+                .add("profile", JSON)
+                .build();
+        MailChimpOutputPluginDelegate.PluginTask task = task(config(server)
+                .set("merge_fields", ImmutableList.of("score", "rate", "active", "joined", "profile")));
+        task.setMergeFieldsByTag(Optional.<Map<String, MergeField>>of(ImmutableMap.of(
+                "score", mergeField("SCORE", "number"),
+                "rate", mergeField("RATE", "number"),
+                "active", mergeField("ACTIVE", "text"),
+                "joined", mergeField("JOINED", "text"),
+                "profile", mergeField("PROFILE", "text"))));
+        task.setInterestsByCategory(Optional.<Map<String, Map<String, Interest>>>of(
+                Collections.<String, Map<String, Interest>>emptyMap()));
+
+        List<Page> pages = PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                "a@example.com", "Thang", "Nguyen", 42L, 1.5, true, Timestamp.ofEpochSecond(1500000000L),
+                ValueFactory.newMap(ValueFactory.newString("city"), ValueFactory.newString("Hanoi")),
+                "b@example.com", null, null, null, null, null, null, null);
+
+        MailChimpPageOutput output = new MailChimpPageOutput(schema, new MailChimpRecordBuffer(schema, task));
+        TaskReport taskReport;
+        try {
+            for (Page page : pages) {
+                output.add(page);
+            }
+            output.finish();
+            taskReport = output.commit();
+        }
+        finally {
+            output.close();
+        }
+
+        assertEquals(2, taskReport.get(Long.class, "pushed").longValue());
+        assertEquals(2, members.size());
+
+        JsonNode filled = members.get(0);
+        assertEquals("a@example.com", filled.get("email_address").asText());
+        assertEquals("pending", filled.get("status").asText());
+        JsonNode mergeFields = filled.get("merge_fields");
+        assertEquals("Thang", mergeFields.get("FNAME").asText());
+        assertEquals("Nguyen", mergeFields.get("LNAME").asText());
+        assertEquals("42", mergeFields.get("SCORE").asText());
+        assertEquals("1.5", mergeFields.get("RATE").asText());
+        assertEquals("true", mergeFields.get("ACTIVE").asText());
+        assertEquals("2017-07-14 02:40:00 UTC", mergeFields.get("JOINED").asText());
+        assertEquals("{\"city\":\"Hanoi\"}", mergeFields.get("PROFILE").asText());
+
+        JsonNode empty = members.get(1).get("merge_fields");
+        for (String tag : ImmutableList.of("FNAME", "LNAME", "SCORE", "RATE", "ACTIVE", "JOINED", "PROFILE")) {
+            assertEquals(tag, "", empty.get(tag).asText());
+        }
+    }
+
+    @Test
+    public void test_add_withResolvedMetadataRequestsNoMetadata()
+    {
+        Schema schema = Schema.builder()
+                .add("email", STRING)
+                .add("fname", STRING)
+                .add("lname", STRING)
+                .add("interests", STRING)
+                .build();
+        MailChimpOutputPluginDelegate.PluginTask task = task(config(server)
+                .set("grouping_columns", ImmutableList.of("interests")));
+        task.setMergeFieldsByTag(Optional.<Map<String, MergeField>>of(
+                Collections.<String, MergeField>emptyMap()));
+        task.setInterestsByCategory(Optional.<Map<String, Map<String, Interest>>>of(ImmutableMap.<String, Map<String, Interest>>of(
+                "interests", ImmutableMap.of("Design", interest("9143cf3bd1", "Design")))));
+
+        List<Page> pages = PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                "a@example.com", "Thang", "Nguyen", "Design");
+
+        MailChimpPageOutput output = new MailChimpPageOutput(schema, new MailChimpRecordBuffer(schema, task));
+        try {
+            for (Page page : pages) {
+                output.add(page);
+            }
+            output.finish();
+            output.commit();
+        }
+        finally {
+            output.close();
+        }
+
+        assertEquals(1, members.size());
+        assertEquals(true, members.get(0).get("interests").get("9143cf3bd1").asBoolean());
+        assertEquals(Collections.<String>emptyList(), metadataRequests);
+    }
+
+    private void handleList(final HttpExchange exchange) throws IOException
+    {
+        if ("POST".equals(exchange.getRequestMethod())) {
+            JsonNode pushed = readJson(exchange).get("members");
+            for (JsonNode member : pushed) {
+                members.add(member);
+            }
+            respond(exchange, report(pushed));
+            return;
+        }
+        metadataRequests.add(exchange.getRequestURI().getPath());
+        respond(exchange, MAPPER.createObjectNode().put("id", "L1"));
+    }
+}
@@ -0,0 +1,154 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Splitter;
+import com.sun.net.httpserver.HttpExchange;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.mailchimp.model.Interest;
+import org.embulk.output.mailchimp.model.MergeField;
+import org.embulk.spi.Schema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.StandInServer;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.config;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.respond;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.task;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that metadata is fetched in large pages, the pages after the first one at the same time, against
+ * a local stand-in of MailChimp which pages by `count` and `offset`.
+ */
+public class TestMailChimpPagination
+{
+    private static final int MERGE_FIELDS = 2500;
+    private static final int CATEGORIES = 5;
+    private static final int INTERESTS = 2500;
+    private static final long PAGE_MILLIS = 200;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private StandInServer server;
+    private final List<String> pageQueries = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+
+    @Before
+    public void setup() throws IOException
+    {
+        server = new StandInServer().handle("/3.0/lists/", this::handleList).start();
+    }
+
+    @After
+    public void teardown()
+    {
+        server.close();
+    }
+
+    @Test
+    public void test_mergeFieldByTag_fetchesLargePagesConcurrently() throws Exception
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config(server));
+        try (MailChimpClient client = new MailChimpClient(task)) {
+            Map<String, MergeField> mergeFields = client.mergeFieldByTag(task);
+            assertEquals(MERGE_FIELDS, mergeFields.size());
+            assertEquals("FIELD2499", mergeFields.get("field2499").getTag());
+        }
+
+        assertEquals(3, pageQueries.size());
+        for (String query : pageQueries) {
+            assertTrue(query, query.startsWith("count=1000&"));
+        }
+        assertEquals(2, maxConcurrentRequests.get());
+    }
+
+    @Test
+    public void test_interestsByCategory_sharesBoundedThreads() throws Exception
+    {
+        List<String> groupingColumns = new ArrayList<>();
+        for (int i = 0; i < CATEGORIES; i++) {
+            groupingColumns.add("category " + i);
+        }
+        MailChimpOutputPluginDelegate.PluginTask task = task(config(server).set("grouping_columns", groupingColumns));
+        try (MailChimpClient client = new MailChimpClient(task)) {
+            long start = System.currentTimeMillis();
+            Map<String, Map<String, Interest>> interests = client.interestsByCategory(task, Schema.builder().build());
+            long elapsedMillis = System.currentTimeMillis() - start;
+
+            assertEquals(CATEGORIES, interests.size());
+            assertEquals(INTERESTS, interests.get("category 4").size());
+            assertEquals("c4-2499", interests.get("category 4").get("Interest 2499").getId());
+            // 5 first pages then 10 other pages, 4 at a time: 2 and 3 turns instead of 15 pages one by one
+            assertTrue("Took " + elapsedMillis + " ms", elapsedMillis < 10 * PAGE_MILLIS);
+        }
+        assertEquals(4, maxConcurrentRequests.get());
+    }
+
+    private void handleList(final HttpExchange exchange) throws IOException
+    {
+        maxConcurrentRequests.accumulateAndGet(concurrentRequests.incrementAndGet(), Math::max);
+        try {
+            String path = exchange.getRequestURI().getPath();
+            ObjectNode response = JsonNodeFactory.instance.objectNode();
+            if (path.endsWith("/merge-fields")) {
+                String query = exchange.getRequestURI().getRawQuery();
+                pageQueries.add(query);
+                Map<String, String> parameters = Splitter.on('&').withKeyValueSeparator('=').split(query);
+                int count = Integer.parseInt(parameters.get("count"));
+                int offset = Integer.parseInt(parameters.get("offset"));
+                ArrayNode mergeFields = response.putArray("merge_fields");
+                for (int i = offset; i < Math.min(offset + count, MERGE_FIELDS); i++) {
+                    mergeFields.addObject().put("merge_id", i).put("tag", "FIELD" + i).put("name", "Field " + i).put("type", "text");
+                }
+                response.put("total_items", MERGE_FIELDS);
+                // Give the other pages time to be requested meanwhile
+                Thread.sleep(PAGE_MILLIS);
+            }
+            else if (path.endsWith("/interest-categories")) {
+                ArrayNode categories = response.putArray("categories");
+                for (int i = 0; i < CATEGORIES; i++) {
+                    categories.addObject().put("id", "c" + i).put("title", "Category " + i);
+                }
+                response.put("total_items", CATEGORIES);
+            }
+            else if (path.endsWith("/interests")) {
+                Map<String, String> parameters = Splitter.on('&').withKeyValueSeparator('=').split(exchange.getRequestURI().getRawQuery());
+                int count = Integer.parseInt(parameters.get("count"));
+                int offset = Integer.parseInt(parameters.get("offset"));
+                String categoryId = Splitter.on('/').splitToList(path).get(5);
+                ArrayNode interests = response.putArray("interests");
+                for (int i = offset; i < Math.min(offset + count, INTERESTS); i++) {
+                    interests.addObject().put("id", categoryId + "-" + i).put("name", "Interest " + i);
+                }
+                response.put("total_items", INTERESTS);
+                Thread.sleep(PAGE_MILLIS);
+            }
+            else {
+                response.put("id", "L1");
+            }
+
+            respond(exchange, response);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        finally {
+            concurrentRequests.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.output.mailchimp.helper.MailChimpRateLimiter;
+import org.embulk.output.mailchimp.helper.PayloadBuffer;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.MAPPER;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.StandInServer;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.config;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.report;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.respond;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.task;
+import static org.embulk.output.mailchimp.helper.MailChimpRateLimiter.parseRetryAfterMillis;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestMailChimpRateLimiter
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void test_parseRetryAfterMillis()
+    {
+        assertEquals(5000, parseRetryAfterMillis("5"));
+        assertEquals(1000, parseRetryAfterMillis(null));
+        assertEquals(1000, parseRetryAfterMillis("soon"));
+        assertEquals(0, parseRetryAfterMillis("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+
+    @Test
+    public void test_acquire_burstDoesNotWait()
+    {
+        MailChimpRateLimiter limiter = new MailChimpRateLimiter(0.1, 3);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            limiter.acquire();
+        }
+        assertTrue("Burst should not wait", System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void test_acquire_waitsForRate()
+    {
+        MailChimpRateLimiter limiter = new MailChimpRateLimiter(10, 1);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+        }
+        assertTrue("Should wait for 3 intervals", System.currentTimeMillis() - start >= 250);
+    }
+
+    @Test
+    public void test_onThrottled_slowsDownAndRecovers()
+    {
+        MailChimpRateLimiter limiter = new MailChimpRateLimiter(10, 1);
+        limiter.onThrottled(0);
+        assertEquals(5.0, limiter.getPermitsPerSecond(), 0.001);
+        limiter.onSuccess();
+        assertEquals(5.5, limiter.getPermitsPerSecond(), 0.001);
+    }
+
+    @Test
+    public void test_of_sharedByCredentialAndRate()
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config().set("max_requests_per_second", 2.0));
+        MailChimpOutputPluginDelegate.PluginTask otherTask = task(config().set("max_requests_per_second", 2.0));
+        MailChimpOutputPluginDelegate.PluginTask otherRate = task(config().set("max_requests_per_second", 4.0));
+
+        MailChimpRateLimiter limiter = MailChimpRateLimiter.of(task);
+        try {
+            assertSame(limiter, MailChimpRateLimiter.of(otherTask));
+            MailChimpRateLimiter.release(otherTask);
+            assertNotSame(limiter, MailChimpRateLimiter.of(otherRate));
+            MailChimpRateLimiter.release(otherRate);
+        }
+        finally {
+            MailChimpRateLimiter.release(task);
+        }
+        // Dropped with its last task
+        MailChimpRateLimiter renewed = MailChimpRateLimiter.of(task);
+        MailChimpRateLimiter.release(task);
+        assertNotSame(limiter, renewed);
+    }
+
+    @Test
+    public void test_of_defaultRateNotSharedByTasks() throws Exception
+    {
+        // The defaults of `sleep_between_requests_millis` and `request_burst`, 3000 ms and 5
+        final MailChimpOutputPluginDelegate.PluginTask task = task(config().set("sleep_between_requests_millis", 3000));
+        final MailChimpOutputPluginDelegate.PluginTask otherTask = task(config().set("sleep_between_requests_millis", 3000));
+        final MailChimpRateLimiter limiter = MailChimpRateLimiter.of(task);
+        final MailChimpRateLimiter otherLimiter = MailChimpRateLimiter.of(otherTask);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            assertNotSame(limiter, otherLimiter);
+
+            long start = System.currentTimeMillis();
+            List<Future<?>> tasks = new ArrayList<>();
+            for (final MailChimpRateLimiter taskLimiter : ImmutableList.of(limiter, otherLimiter)) {
+                tasks.add(executor.submit(() -> {
+                    for (int i = 0; i < 5; i++) {
+                        taskLimiter.acquire();
+                    }
+                }));
+            }
+            for (Future<?> future : tasks) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            // As fast as a single task: a bucket shared by both tasks would wait 5 intervals of 3000 ms
+            assertTrue("Tasks should not share the default rate", System.currentTimeMillis() - start < 1000);
+        }
+        finally {
+            executor.shutdownNow();
+            MailChimpRateLimiter.release(task);
+            MailChimpRateLimiter.release(otherTask);
+        }
+    }
+
+    @Test
+    public void test_metadataRequests_notThrottled() throws Exception
+    {
+        try (StandInServer server = new StandInServer()) {
+            server.handle("/3.0/lists/", exchange -> {
+                if ("POST".equals(exchange.getRequestMethod())) {
+                    respond(exchange, report(MAPPER.readTree(exchange.getRequestBody()).get("members")));
+                    return;
+                }
+                ObjectNode response = JsonNodeFactory.instance.objectNode().put("id", "L1").put("total_items", 0);
+                response.putArray("merge_fields");
+                respond(exchange, response);
+            }).start();
+            // One request per 500 ms, without burst
+            MailChimpOutputPluginDelegate.PluginTask task = task(config(server)
+                    .set("sleep_between_requests_millis", 500)
+                    .set("request_burst", 1));
+
+            long start = System.currentTimeMillis();
+            try (MailChimpClient client = new MailChimpClient(task)) {
+                for (int i = 0; i < 4; i++) {
+                    client.mergeFieldByTag(task);
+                }
+                assertTrue("Metadata requests should not wait", System.currentTimeMillis() - start < 500);
+
+                start = System.currentTimeMillis();
+                for (int i = 0; i < 3; i++) {
+                    PayloadBuffer payload = new PayloadBuffer(64);
+                    payload.write("{\"members\":[]}".getBytes(StandardCharsets.UTF_8));
+                    client.pushOnce(payload, task);
+                }
+                assertTrue("Bulk upserts should wait for the rate", System.currentTimeMillis() - start >= 900);
+            }
+        }
+    }
+}
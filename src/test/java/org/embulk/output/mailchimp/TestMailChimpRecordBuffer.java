@@ -0,0 +1,321 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import org.eclipse.jetty.client.HttpResponseException;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.output.mailchimp.helper.EmailFingerprintIndex;
+import org.embulk.output.mailchimp.model.Interest;
+import org.embulk.output.mailchimp.model.MergeField;
+import org.embulk.output.mailchimp.model.RepeatedEmailPolicy;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.MAPPER;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.StandInServer;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.config;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.readJson;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.report;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.respond;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.task;
+import static org.embulk.spi.type.Types.STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how batches of rows are sent, against a local stand-in of MailChimp which records every bulk upsert
+ * as `email:FNAME` of its members and answers it as the test asks.
+ */
+public class TestMailChimpRecordBuffer
+{
+    private static final Schema SCHEMA = Schema.builder()
+            .add("email", STRING)
+            .add("fname", STRING)
+            .add("lname", STRING)
+            .build();
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private StandInServer server;
+    // Every request, and the requests which succeeded in the order they were answered
+    private final List<List<String>> requests = new ArrayList<>();
+    private final List<List<String>> accepted = Collections.synchronizedList(new ArrayList<List<String>>());
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+    private volatile long requestMillis;
+    private volatile Responder responder = (request, members) -> 200;
+
+    @Before
+    public void setup() throws IOException
+    {
+        server = new StandInServer().handle("/3.0/lists/", this::handleList).start();
+    }
+
+    @After
+    public void teardown()
+    {
+        server.close();
+    }
+
+    @Test
+    public void test_inFlight_keepsOrderOfEmailsAndDrainsAtCommit()
+    {
+        requestMillis = 200;
+        TaskReport taskReport = push(config(server)
+                                             .set("max_records_per_request", 2)
+                                             .set("max_in_flight_requests", 3),
+                                     "a@example.com", "1", "b@example.com", "1",
+                                     "a@example.com", "2", "c@example.com", "1",
+                                     "d@example.com", "1", "e@example.com", "1");
+
+        // Commit returns once every batch in flight is done
+        assertEquals(6, taskReport.get(Long.class, "pushed").longValue());
+        assertEquals(0, taskReport.get(Integer.class, "error_count").intValue());
+        assertEquals(3, accepted.size());
+        // The third batch overtakes the second one, which waits for the first one to update `a` first
+        assertEquals(2, maxConcurrentRequests.get());
+        assertTrue(accepted.toString(), acceptedIndexOf("a@example.com:1") < acceptedIndexOf("a@example.com:2"));
+        assertEquals(list("a@example.com:2", "c@example.com:1"), accepted.get(2));
+    }
+
+    @Test
+    public void test_inFlight_propagatesFailureOfBatch()
+    {
+        requestMillis = 100;
+        responder = (request, members) -> members.contains("c@example.com:1") ? 500 : 200;
+        try {
+            push(config(server)
+                         .set("max_records_per_request", 2)
+                         .set("max_in_flight_requests", 3),
+                 "a@example.com", "1", "b@example.com", "1",
+                 "c@example.com", "1", "d@example.com", "1",
+                 "e@example.com", "1", "f@example.com", "1");
+            fail("Expected the failure of the second batch");
+        }
+        catch (HttpResponseException e) {
+            assertEquals(500, e.getResponse().getStatus());
+        }
+    }
+
+    @Test
+    public void test_isolateRejectedRecords_countsRefusedRecordsOnly()
+    {
+        responder = (request, members) -> members.contains("bad2@example.com:1")
+                || members.contains("bad5@example.com:1") ? 400 : 200;
+        TaskReport taskReport = push(config(server)
+                                             .set("max_records_per_request", 8)
+                                             .set("isolate_rejected_records", true),
+                                     "ok0@example.com", "1", "ok1@example.com", "1",
+                                     "bad2@example.com", "1", "ok3@example.com", "1",
+                                     "ok4@example.com", "1", "bad5@example.com", "1",
+                                     "ok6@example.com", "1", "ok7@example.com", "1");
+
+        assertEquals(8, taskReport.get(Long.class, "pushed").longValue());
+        assertEquals(2, taskReport.get(Integer.class, "error_count").intValue());
+        assertEquals(list(list("ok0@example.com:1", "ok1@example.com:1"),
+                          list("ok3@example.com:1"),
+                          list("ok4@example.com:1"),
+                          list("ok6@example.com:1", "ok7@example.com:1")),
+                     accepted);
+        // Halves down to every refused record: 8, 4, 2, 2, 1, 1, 4, 2, 1, 1 and 2 records
+        assertEquals(11, requests.size());
+    }
+
+    @Test
+    public void test_rejectedBatch_failsWithoutIsolation()
+    {
+        responder = (request, members) -> members.contains("bad2@example.com:1") ? 400 : 200;
+        try {
+            push(config(server).set("max_records_per_request", 4),
+                 "ok0@example.com", "1", "ok1@example.com", "1",
+                 "bad2@example.com", "1", "ok3@example.com", "1");
+            fail("Expected the batch to be rejected");
+        }
+        catch (HttpResponseException e) {
+            assertEquals(400, e.getResponse().getStatus());
+        }
+        assertEquals(1, requests.size());
+    }
+
+    @Test
+    public void test_duplicatedEmails_pushedInRoundsInOrder()
+    {
+        TaskReport taskReport = push(config(server).set("max_records_per_request", 6),
+                                     "a@example.com", "1", "b@example.com", "1",
+                                     "a@example.com", "2", "c@example.com", "1",
+                                     "a@example.com", "3", "b@example.com", "2");
+
+        assertEquals(6, taskReport.get(Long.class, "pushed").longValue());
+        assertEquals(list(list("a@example.com:1", "b@example.com:1", "c@example.com:1"),
+                          list("a@example.com:2", "b@example.com:2"),
+                          list("a@example.com:3")),
+                     accepted);
+    }
+
+    @Test
+    public void test_duplicatedEmails_retryResumesAtFailedRound()
+    {
+        // The second round fails once
+        responder = (request, members) -> request == 1 ? 503 : 200;
+        TaskReport taskReport = push(config(server)
+                                             .set("max_records_per_request", 6)
+                                             .set("retry_initial_wait_msec", 10),
+                                     "a@example.com", "1", "b@example.com", "1",
+                                     "a@example.com", "2", "c@example.com", "1",
+                                     "a@example.com", "3", "b@example.com", "2");
+
+        assertEquals(0, taskReport.get(Integer.class, "error_count").intValue());
+        assertEquals(1, taskReport.get(Long.class, "retried_batches").longValue());
+        // The first round isn't pushed again, so every record of `a` is applied once and in order
+        assertEquals(4, requests.size());
+        assertEquals(list(list("a@example.com:1", "b@example.com:1", "c@example.com:1"),
+                          list("a@example.com:2", "b@example.com:2"),
+                          list("a@example.com:3")),
+                     accepted);
+    }
+
+    @Test
+    public void test_deferredRecords_sentInBatchesOfAdaptedSize()
+    {
+        // Slower requests than targeted halve the batch size after the first request
+        requestMillis = 50;
+        TaskReport taskReport = push(config(server)
+                                             .set("adaptive_batch_size", true)
+                                             .set("min_records_per_request", 1)
+                                             .set("max_records_per_request", 4)
+                                             .set("target_request_millis", 1)
+                                             .set("repeated_email_policy", "defer"),
+                                     "a@example.com", "1", "b@example.com", "1",
+                                     "c@example.com", "1", "d@example.com", "1",
+                                     "a@example.com", "2", "b@example.com", "2",
+                                     "c@example.com", "2", "d@example.com", "2");
+
+        assertEquals(4, taskReport.get(Long.class, "repeated_emails").longValue());
+        assertEquals(list(list("a@example.com:1", "b@example.com:1", "c@example.com:1", "d@example.com:1"),
+                          list("a@example.com:2", "b@example.com:2"),
+                          list("c@example.com:2", "d@example.com:2")),
+                     accepted);
+    }
+
+    /**
+     * Push rows of `email, fname` pairs through the page output of a task, the list's metadata resolved.
+     */
+    private TaskReport push(final ConfigSource config, final String... values)
+    {
+        MailChimpOutputPluginDelegate.PluginTask task = task(config);
+        task.setMergeFieldsByTag(Optional.<Map<String, MergeField>>of(Collections.<String, MergeField>emptyMap()));
+        task.setInterestsByCategory(Optional.<Map<String, Map<String, Interest>>>of(
+                Collections.<String, Map<String, Interest>>emptyMap()));
+        // As the transaction does
+        if (task.getRepeatedEmailPolicy() != RepeatedEmailPolicy.SEND) {
+            task.setEmailIndexId(Optional.of(UUID.randomUUID().toString()));
+        }
+
+        List<Object> rows = new ArrayList<>();
+        for (int i = 0; i < values.length; i += 2) {
+            rows.add(values[i]);
+            rows.add(values[i + 1]);
+            rows.add("Nguyen");
+        }
+        List<Page> pages = PageTestUtils.buildPage(runtime.getBufferAllocator(), SCHEMA, rows.toArray());
+
+        MailChimpPageOutput output = new MailChimpPageOutput(SCHEMA, new MailChimpRecordBuffer(SCHEMA, task));
+        try {
+            for (Page page : pages) {
+                output.add(page);
+            }
+            output.finish();
+            return output.commit();
+        }
+        finally {
+            output.close();
+            if (task.getEmailIndexId().isPresent()) {
+                EmailFingerprintIndex.release(task.getEmailIndexId().get());
+            }
+        }
+    }
+
+    private int acceptedIndexOf(final String member)
+    {
+        synchronized (accepted) {
+            for (int i = 0; i < accepted.size(); i++) {
+                if (accepted.get(i).contains(member)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    @SafeVarargs
+    private static <T> List<T> list(final T... items)
+    {
+        List<T> list = new ArrayList<>();
+        Collections.addAll(list, items);
+        return list;
+    }
+
+    private void handleList(final HttpExchange exchange) throws IOException
+    {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, MAPPER.createObjectNode().put("id", "L1"));
+            return;
+        }
+        maxConcurrentRequests.accumulateAndGet(concurrentRequests.incrementAndGet(), Math::max);
+        try {
+            JsonNode pushed = readJson(exchange).get("members");
+            List<String> members = new ArrayList<>();
+            for (JsonNode member : pushed) {
+                members.add(member.get("email_address").asText() + ":" + member.get("merge_fields").get("FNAME").asText());
+            }
+            int request;
+            synchronized (requests) {
+                request = requests.size();
+                requests.add(members);
+            }
+            Thread.sleep(requestMillis);
+
+            int status = responder.statusOf(request, members);
+            if (status != 200) {
+                respond(exchange, status, "{\"title\":\"Rejected by the stand-in\"}".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            accepted.add(members);
+            respond(exchange, report(pushed));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        finally {
+            concurrentRequests.decrementAndGet();
+        }
+    }
+
+    /**
+     * Decides the status of a bulk upsert.
+     */
+    private interface Responder
+    {
+        int statusOf(int request, List<String> members);
+    }
+}
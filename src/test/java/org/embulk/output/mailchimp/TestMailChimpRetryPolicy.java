@@ -0,0 +1,127 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.JsonMappingException;
+import org.embulk.output.mailchimp.helper.MailChimpCircuitBreaker;
+import org.embulk.output.mailchimp.helper.MailChimpRetryPolicy;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMailChimpRetryPolicy
+{
+    @Test
+    public void test_isRetryableStatus()
+    {
+        MailChimpRetryPolicy policy = new MailChimpRetryPolicy(3, 100, 1000);
+        assertTrue(policy.isRetryableStatus(429));
+        assertTrue(policy.isRetryableStatus(502));
+        assertTrue(policy.isRetryableStatus(503));
+        assertFalse(policy.isRetryableStatus(500));
+        assertFalse(policy.isRetryableStatus(400));
+        assertFalse(policy.isRetryableStatus(404));
+        assertTrue(policy.isRetryable(new TimeoutException()));
+        assertTrue(policy.isRetryable(new IOException("Connection reset")));
+        assertFalse(policy.isRetryable(new IllegalStateException()));
+        assertFalse(policy.isRetryable(new JsonMappingException("Unexpected end-of-input")));
+        assertFalse(policy.isRetryable(new RuntimeException(new JsonMappingException("Unexpected end-of-input"))));
+    }
+
+    @Test
+    public void test_backoffMillis_staysWithinBounds()
+    {
+        MailChimpRetryPolicy policy = new MailChimpRetryPolicy(10, 100, 1000);
+        long waitMillis = policy.getInitialWaitMillis();
+        boolean spread = false;
+        for (int i = 0; i < 1000; i++) {
+            long next = policy.backoffMillis(waitMillis);
+            assertTrue("Wait " + next, next >= 100 && next <= Math.min(1000, waitMillis * 3));
+            spread |= next != waitMillis;
+            waitMillis = next;
+        }
+        assertTrue("Waits should be randomized", spread);
+    }
+
+    @Test
+    public void test_throttledWaitMillis_honorsRetryAfter()
+    {
+        MailChimpRetryPolicy policy = new MailChimpRetryPolicy(3, 100, 1000);
+        for (int i = 0; i < 100; i++) {
+            long waitMillis = policy.throttledWaitMillis("5", 100);
+            assertTrue("Wait " + waitMillis, waitMillis >= 5000 && waitMillis <= 5100);
+        }
+    }
+
+    @Test
+    public void test_circuitBreaker_opensAfterConsecutiveFailures()
+    {
+        MailChimpCircuitBreaker breaker = new MailChimpCircuitBreaker("http://breaker.test:80", 3, 300);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        long start = System.currentTimeMillis();
+        breaker.awaitClosed();
+        assertTrue("Should not open before the threshold", System.currentTimeMillis() - start < 300);
+
+        breaker.onFailure();
+        start = System.currentTimeMillis();
+        breaker.awaitClosed();
+        assertTrue("Should open at the threshold", System.currentTimeMillis() - start >= 250);
+
+        // A failure right after reopening pauses requests again
+        breaker.onFailure();
+        start = System.currentTimeMillis();
+        breaker.awaitClosed();
+        assertTrue("Should open on a failed probe", System.currentTimeMillis() - start >= 250);
+    }
+
+    @Test
+    public void test_circuitBreaker_halfOpenLetsOneProbe() throws Exception
+    {
+        final MailChimpCircuitBreaker breaker = new MailChimpCircuitBreaker("http://breaker.test:80", 1, 200);
+        breaker.onFailure();
+        // The probe
+        breaker.awaitClosed();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> waiting = executor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    breaker.awaitClosed();
+                }
+            });
+            Thread.sleep(300);
+            assertFalse("Should wait for the probe", waiting.isDone());
+
+            breaker.onSuccess();
+            waiting.get(1, TimeUnit.SECONDS);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void test_circuitBreaker_cancelledProbeLetsAnother() throws Exception
+    {
+        MailChimpCircuitBreaker breaker = new MailChimpCircuitBreaker("http://breaker.test:80", 1, 100);
+        breaker.onFailure();
+        breaker.awaitClosed();
+        breaker.onCancelled();
+        long start = System.currentTimeMillis();
+        breaker.awaitClosed();
+        assertTrue("Should probe again at once", System.currentTimeMillis() - start < 100);
+    }
+}
@@ -0,0 +1,76 @@
+package org.embulk.output.mailchimp;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestMailChimpRetryQueue
+{
+    @Test
+    public void test_pollReady_laterBatchOvertakesOnlyWithoutSharedEmails()
+    {
+        MailChimpRetryQueue queue = new MailChimpRetryQueue();
+        MailChimpRetryQueue.Batch first = queue.add(Collections.<String[]>emptyList(), ImmutableSet.of("a@example.com", "b@example.com"));
+        assertEquals(ImmutableSet.of(first.getSequence()), sequences(queue.pollReady(0)));
+        queue.retryLater(first, 1000, 0);
+
+        MailChimpRetryQueue.Batch sameEmail = queue.add(Collections.<String[]>emptyList(), ImmutableSet.of("b@example.com"));
+        MailChimpRetryQueue.Batch otherEmail = queue.add(Collections.<String[]>emptyList(), ImmutableSet.of("c@example.com"));
+
+        // Only the batch without any email of the failed one goes on
+        assertEquals(ImmutableSet.of(otherEmail.getSequence()), sequences(queue.pollReady(10)));
+        assertEquals(990, queue.millisUntilNextDue(10));
+        queue.complete(otherEmail);
+
+        // The failed batch is retried when due, and the one behind it waits until it is done
+        assertEquals(ImmutableSet.of(first.getSequence()), sequences(queue.pollReady(1000)));
+        assertTrue(queue.pollReady(1000).isEmpty());
+        queue.complete(first);
+        assertEquals(ImmutableSet.of(sameEmail.getSequence()), sequences(queue.pollReady(1000)));
+        queue.complete(sameEmail);
+
+        assertEquals(0, queue.size());
+        assertEquals(1, queue.getRetries());
+        assertEquals(-1, queue.millisUntilNextDue(1000));
+    }
+
+    @Test
+    public void test_retryLater_keepsPendingPartsAndErrors()
+    {
+        MailChimpRetryQueue queue = new MailChimpRetryQueue();
+        List<String[]> firstRound = Arrays.asList(new String[] {"a@example.com"}, new String[] {"b@example.com"});
+        List<String[]> secondRound = Collections.singletonList(new String[] {"a@example.com"});
+        MailChimpRetryQueue.Batch batch = queue.add(Arrays.asList(firstRound.get(0), firstRound.get(1), secondRound.get(0)),
+                                                    Arrays.asList(firstRound, secondRound),
+                                                    ImmutableSet.of("a@example.com", "b@example.com"));
+        assertEquals(3, batch.getPendingCount());
+
+        // The first round is done with a refused record, then the second one fails
+        queue.pollReady(0);
+        batch.getPendingParts().pollFirst();
+        batch.addErrorCount(1);
+        queue.retryLater(batch, 1000, 0);
+
+        // The retry resumes at the second round, and the failure of the first one still counts
+        assertEquals(ImmutableSet.of(batch.getSequence()), sequences(queue.pollReady(1000)));
+        assertSame(secondRound, batch.getPendingParts().peekFirst());
+        assertEquals(1, batch.getPendingCount());
+        assertEquals(1, batch.getErrorCount());
+    }
+
+    private static ImmutableSet<Long> sequences(final List<MailChimpRetryQueue.Batch> batches)
+    {
+        ImmutableSet.Builder<Long> sequences = ImmutableSet.builder();
+        for (MailChimpRetryQueue.Batch batch : batches) {
+            sequences.add(batch.getSequence());
+        }
+        return sequences.build();
+    }
+}
@@ -0,0 +1,230 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.output.mailchimp.model.Interest;
+import org.embulk.output.mailchimp.model.MergeField;
+import org.embulk.spi.Schema;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.embulk.output.mailchimp.MailChimpTestHelper.CONFIG_MAPPER;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.MAPPER;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.config;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.interest;
+import static org.embulk.output.mailchimp.MailChimpTestHelper.mergeField;
+import static org.embulk.spi.type.Types.JSON;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMemberMappingPlan
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void test_encode_mergeFieldsAndInterests()
+    {
+        Schema schema = Schema.builder()
+                .add("email", STRING)
+                .add("fname", STRING)
+                .add("lname", STRING)
+                .add("Website", STRING)
+                .add("Address", STRING)
+                .add("interests", STRING)
+                .build();
+        ConfigSource config = config()
+                .set("merge_fields", ImmutableList.of("website", "address", "phone"))
+                .set("grouping_columns", ImmutableList.of("interests"));
+        MailChimpOutputPluginDelegate.PluginTask task = CONFIG_MAPPER.map(config, MailChimpOutputPluginDelegate.PluginTask.class);
+
+        Map<String, MergeField> mergeFields = ImmutableMap.of(
+                "website", mergeField("WEBSITE", "url"),
+                "address", mergeField("ADDRESS", "address"));
+        Map<String, Map<String, Interest>> categories = ImmutableMap.<String, Map<String, Interest>>of(
+                "interests", ImmutableMap.of("Donating", interest("a1", "Donating"), "Volunteering", interest("b2", "Volunteering")));
+
+        MemberMappingPlan plan = MemberMappingPlan.build(schema, task, mergeFields, categories);
+        // Slots: email, fname, lname, language, then merge fields and grouping columns in configured order
+        String[] row = new String[]{"thang@example.com", "Thang", "Nguyen", "", "https://example.com",
+                                    "{\"city\":\"mountain view\",\"addr1\":\"1234\"}", "Donating"};
+        ObjectNode member = plan.encode(row);
+
+        assertEquals("thang@example.com", plan.emailOf(row));
+        assertEquals("thang@example.com", member.get("email_address").asText());
+        assertEquals("pending", member.get("status").asText());
+        assertEquals("Thang", member.get("merge_fields").get("FNAME").asText());
+        assertEquals("https://example.com", member.get("merge_fields").get("WEBSITE").asText());
+        assertEquals("{\"addr1\":\"1234\",\"addr2\":\"\",\"city\":\"mountain view\",\"state\":\"\",\"zip\":\"\",\"country\":\"\"}",
+                     member.get("merge_fields").get("ADDRESS").toString());
+        assertFalse(member.get("merge_fields").has("PHONE"));
+        assertEquals(true, member.get("interests").get("a1").asBoolean());
+        assertEquals(false, member.get("interests").get("b2").asBoolean());
+        assertFalse(member.has("language"));
+    }
+
+    @Test
+    public void test_estimateSize_isCloseToEncodedSize()
+    {
+        Schema schema = Schema.builder()
+                .add("email", STRING)
+                .add("fname", STRING)
+                .add("lname", STRING)
+                .add("Website", STRING)
+                .add("interests", STRING)
+                .build();
+        ConfigSource config = config()
+                .set("merge_fields", ImmutableList.of("website"))
+                .set("grouping_columns", ImmutableList.of("interests"));
+        MailChimpOutputPluginDelegate.PluginTask task = CONFIG_MAPPER.map(config, MailChimpOutputPluginDelegate.PluginTask.class);
+        Map<String, Map<String, Interest>> categories = ImmutableMap.<String, Map<String, Interest>>of(
+                "interests", ImmutableMap.of("Donating", interest("a1", "Donating"), "Volunteering", interest("b2", "Volunteering")));
+
+        MemberMappingPlan plan = MemberMappingPlan.build(schema, task, ImmutableMap.of("website", mergeField("WEBSITE", "url")), categories);
+        String[] row = new String[]{"thang@example.com", "Thang", "Nguyen", "", "https://example.com", "Donating"};
+
+        // The encoded member and the separator between members
+        int encodedSize = plan.encode(row).toString().length() + 1;
+        int estimatedSize = plan.estimateSize(row);
+        assertTrue("Estimated " + estimatedSize + " for " + encodedSize, Math.abs(estimatedSize - encodedSize) <= encodedSize / 10);
+    }
+
+    @Test
+    public void test_coalesce_overlaysNonEmptyValuesAndUnionsInterests()
+    {
+        Schema schema = Schema.builder()
+                .add("email", STRING)
+                .add("fname", STRING)
+                .add("lname", STRING)
+                .add("Website", STRING)
+                .add("interests", STRING)
+                .build();
+        ConfigSource config = config()
+                .set("merge_fields", ImmutableList.of("website"))
+                .set("grouping_columns", ImmutableList.of("interests"));
+        MailChimpOutputPluginDelegate.PluginTask task = CONFIG_MAPPER.map(config, MailChimpOutputPluginDelegate.PluginTask.class);
+        Map<String, Map<String, Interest>> categories = ImmutableMap.<String, Map<String, Interest>>of(
+                "interests", ImmutableMap.of("Donating", interest("a1", "Donating"), "Volunteering", interest("b2", "Volunteering")));
+
+        MemberMappingPlan plan = MemberMappingPlan.build(schema, task, ImmutableMap.of("website", mergeField("WEBSITE", "url")), categories);
+        String[] earlier = new String[]{"thang@example.com", "Thang", "Nguyen", "", "https://example.com", "Donating"};
+        String[] later = new String[]{"thang@example.com", "", "Tran", "", "", "Volunteering"};
+        ObjectNode member = plan.encode(plan.coalesce(earlier, later));
+
+        assertEquals("Thang", member.get("merge_fields").get("FNAME").asText());
+        assertEquals("Tran", member.get("merge_fields").get("LNAME").asText());
+        assertEquals("https://example.com", member.get("merge_fields").get("WEBSITE").asText());
+        assertEquals(true, member.get("interests").get("a1").asBoolean());
+        assertEquals(true, member.get("interests").get("b2").asBoolean());
+    }
+
+    @Test
+    public void test_readRecord_matchesTextOfRows()
+    {
+        Schema schema = Schema.builder()
+                .add("email", STRING)
+                .add("fname", STRING)
+                .add("lname", STRING)
+                .add("score", LONG)
+                .add("profile", JSON)
+                .build();
+        ConfigSource config = config().set("merge_fields", ImmutableList.of("score", "profile"));
+        MailChimpOutputPluginDelegate.PluginTask task = CONFIG_MAPPER.map(config, MailChimpOutputPluginDelegate.PluginTask.class);
+        Map<String, MergeField> mergeFields = ImmutableMap.of(
+                "score", mergeField("SCORE", "number"),
+                "profile", mergeField("PROFILE", "text"));
+
+        MemberMappingPlan plan = MemberMappingPlan.build(schema, task, mergeFields, ImmutableMap.<String, Map<String, Interest>>of());
+        ObjectNode record = JsonNodeFactory.instance.objectNode()
+                .put("email", "thang@example.com")
+                .put("fname", "Thang")
+                .put("score", 42L);
+        record.putNull("lname");
+        record.putObject("profile").put("city", "Hanoi");
+
+        assertArrayEquals(new String[]{"thang@example.com", "Thang", "", "", "42", "{\"city\":\"Hanoi\"}"},
+                          plan.readRecord(record));
+    }
+
+    @Test
+    public void test_batchEncoder_keepsRowOrder() throws Exception
+    {
+        Schema schema = Schema.builder()
+                .add("email", STRING)
+                .add("fname", STRING)
+                .add("lname", STRING)
+                .build();
+        MailChimpOutputPluginDelegate.PluginTask task = CONFIG_MAPPER.map(config(), MailChimpOutputPluginDelegate.PluginTask.class);
+        MemberMappingPlan plan = MemberMappingPlan.build(schema, task, ImmutableMap.<String, MergeField>of(),
+                                                         ImmutableMap.<String, Map<String, Interest>>of());
+
+        List<String[]> rows = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            rows.add(new String[]{"user" + i + "@example.com", "", "", ""});
+        }
+
+        ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+        try (MemberBatchEncoder serialEncoder = new MemberBatchEncoder(plan, 1);
+                MemberBatchEncoder parallelEncoder = new MemberBatchEncoder(plan, 4)) {
+            serialEncoder.writePayload(rows, true, serial);
+            parallelEncoder.writePayload(rows, true, parallel);
+        }
+
+        assertEquals(serial.toString("UTF-8"), parallel.toString("UTF-8"));
+        JsonNode members = MAPPER.readTree(parallel.toByteArray()).get("members");
+        assertEquals(rows.size(), members.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals("user" + i + "@example.com", members.get(i).get("email_address").asText());
+        }
+    }
+
+    @Test
+    public void test_write_eachFieldOnce() throws Exception
+    {
+        Schema schema = Schema.builder()
+                .add("email", STRING)
+                .add("first_name", STRING)
+                .add("lname", STRING)
+                .add("fname", STRING)
+                .add("interests", STRING)
+                .build();
+        ConfigSource config = config()
+                .set("fname_column", "first_name")
+                .set("merge_fields", ImmutableList.of("fname", "FNAME"))
+                .set("grouping_columns", ImmutableList.of("interests", "interests"));
+        MailChimpOutputPluginDelegate.PluginTask task = CONFIG_MAPPER.map(config, MailChimpOutputPluginDelegate.PluginTask.class);
+        Map<String, Map<String, Interest>> categories = ImmutableMap.<String, Map<String, Interest>>of(
+                "interests", ImmutableMap.of("Donating", interest("a1", "Donating")));
+
+        MemberMappingPlan plan = MemberMappingPlan.build(schema, task, ImmutableMap.of("fname", mergeField("FNAME", "text")), categories);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MemberBatchEncoder encoder = new MemberBatchEncoder(plan, 1)) {
+            encoder.writePayload(ImmutableList.of(plan.readRecord(MAPPER.createObjectNode()
+                    .put("email", "thang@example.com")
+                    .put("first_name", "Thang")
+                    .put("lname", "Nguyen")
+                    .put("fname", "Tom")
+                    .put("interests", "Donating,Donating"))), false, out);
+        }
+
+        assertEquals("{\"members\":[{\"email_address\":\"thang@example.com\",\"status\":\"pending\","
+                             + "\"merge_fields\":{\"FNAME\":\"Tom\",\"LNAME\":\"Nguyen\"},\"interests\":{\"a1\":true}}],"
+                             + "\"update_existing\":false}",
+                     out.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,42 @@
+package org.embulk.output.mailchimp;
+
+import org.embulk.output.mailchimp.helper.PayloadBuffer;
+import org.embulk.output.mailchimp.helper.PayloadBufferPool;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TestPayloadBufferPool
+{
+    @Test
+    public void test_acquire_reusesReleasedBuffer()
+    {
+        PayloadBufferPool pool = new PayloadBufferPool(2, 1024);
+        PayloadBuffer first = pool.acquire(16);
+        first.write("{\"members\":[]}".getBytes(StandardCharsets.UTF_8), 0, 14);
+        pool.release(first);
+
+        PayloadBuffer second = pool.acquire(16);
+        assertSame(first, second);
+        assertEquals("Released buffer should be empty", 0, second.size());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void test_release_dropsOversizedBuffer()
+    {
+        PayloadBufferPool pool = new PayloadBufferPool(2, 1024);
+        PayloadBuffer buffer = pool.acquire(16);
+        buffer.write(new byte[2048], 0, 2048);
+        pool.release(buffer);
+
+        assertNotSame(buffer, pool.acquire(16));
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+}
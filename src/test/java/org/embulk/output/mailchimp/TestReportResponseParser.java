@@ -0,0 +1,49 @@
+package org.embulk.output.mailchimp;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.embulk.output.mailchimp.helper.ReportResponseParser;
+import org.embulk.output.mailchimp.model.ReportResponse;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestReportResponseParser
+{
+    @Test
+    public void test_parse_skipsEchoedMembers() throws IOException
+    {
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        ArrayNode newMembers = response.putArray("new_members");
+        for (int i = 0; i < 500; i++) {
+            newMembers.addObject()
+                    .put("email_address", "user" + i + "@example.com")
+                    .putObject("merge_fields").put("FNAME", "First" + i);
+        }
+        response.putArray("updated_members");
+        response.putArray("errors").addObject()
+                .put("email_address", "fake@example.com")
+                .put("error", "looks fake or invalid")
+                .put("error_code", "ERROR_GENERIC");
+        response.put("total_created", 500)
+                .put("total_updated", 0)
+                .put("error_count", 1)
+                .putObject("_links");
+
+        InputStream content = new ByteArrayInputStream(response.toString().getBytes(StandardCharsets.UTF_8));
+        ReportResponse reportResponse = new ReportResponseParser().parse(content);
+
+        assertEquals(500, reportResponse.getTotalCreated());
+        assertEquals(0, reportResponse.getTotalUpdated());
+        assertEquals(1, reportResponse.getErrorCount());
+        assertEquals(1, reportResponse.getErrors().size());
+        assertEquals("fake@example.com", reportResponse.getErrors().get(0).getEmailAddress());
+        assertEquals("looks fake or invalid", reportResponse.getErrors().get(0).getError());
+    }
+}